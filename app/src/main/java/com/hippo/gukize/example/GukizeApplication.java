@@ -38,6 +38,12 @@ public class GukizeApplication extends Application {
 
     private static final String TAG = GukizeApplication.class.getSimpleName();
 
+    private static OkHttpClient sOkHttpClient;
+
+    public static OkHttpClient getOkHttpClient() {
+        return sOkHttpClient;
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -47,7 +53,8 @@ public class GukizeApplication extends Application {
         builder.hasDiskCache = true;
         builder.diskCacheDir = new File(getCacheDir(), "thumb");
         builder.diskCacheMaxSize = 80 * 1024 * 1024; // 80MB
-        builder.okHttpClient = new OkHttpClient.Builder().build();
+        sOkHttpClient = new OkHttpClient.Builder().build();
+        builder.okHttpClient = sOkHttpClient;
         builder.debug = false;
         Gukize.init(builder);
 
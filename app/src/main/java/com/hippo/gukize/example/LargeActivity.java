@@ -25,15 +25,78 @@ import android.support.annotation.Nullable;
 import android.support.v7.app.AppCompatActivity;
 
 import com.hippo.gukize.LargeGukizeView;
+import com.hippo.gukize.StreamingPipe;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
 
 public class LargeActivity extends AppCompatActivity {
 
+    // Show the image while downloading
+    public static final String KEY_STREAM = "stream";
+
+    private Call mCall;
+
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_large);
 
         LargeGukizeView imageView = (LargeGukizeView) findViewById(R.id.large_gukize_view);
-        imageView.load(Constants.KEY_GIF, Constants.URL_GIF);
+        if (getIntent().getBooleanExtra(KEY_STREAM, false)) {
+            StreamingPipe pipe = new StreamingPipe(-1);
+            imageView.setPreviewEnabled(true);
+            imageView.loadStream(Constants.KEY_JPEG, Constants.URL_JPEG, pipe);
+            download(Constants.URL_JPEG, pipe);
+        } else {
+            imageView.load(Constants.KEY_GIF, Constants.URL_GIF);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mCall != null) {
+            mCall.cancel();
+        }
+    }
+
+    private void download(String url, final StreamingPipe pipe) {
+        Request request = new Request.Builder().url(url).build();
+        mCall = GukizeApplication.getOkHttpClient().newCall(request);
+        mCall.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                pipe.fail();
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                ResponseBody body = response.body();
+                try {
+                    if (!response.isSuccessful()) {
+                        pipe.fail();
+                        return;
+                    }
+                    InputStream is = body.byteStream();
+                    byte[] buffer = new byte[8 * 1024];
+                    int n;
+                    while ((n = is.read(buffer)) != -1) {
+                        pipe.write(buffer, 0, n);
+                    }
+                    pipe.finish();
+                } catch (IOException e) {
+                    pipe.fail();
+                } finally {
+                    body.close();
+                }
+            }
+        });
     }
 }
@@ -28,15 +28,75 @@ import android.support.v4.app.FragmentStatePagerAdapter;
 import android.support.v4.view.ViewPager;
 import android.support.v7.app.AppCompatActivity;
 
-public class LargePagerActivity extends AppCompatActivity {
+import com.hippo.gukize.ReaderPreloader;
+
+public class LargePagerActivity extends AppCompatActivity implements ReaderPreloader.PageProvider {
+
+    private static final int PAGE_COUNT = 100;
+    private static final int PRELOAD_WINDOW = 2;
+
+    private ReaderPreloader mPreloader;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_large_pager);
 
-        ViewPager viewPager = (ViewPager) findViewById(R.id.view_pager);
+        final ViewPager viewPager = (ViewPager) findViewById(R.id.view_pager);
         viewPager.setAdapter(new Adapter(getSupportFragmentManager()));
+
+        // Keep neighbor pages ready
+        viewPager.setOffscreenPageLimit(PRELOAD_WINDOW);
+        mPreloader = new ReaderPreloader(this, this, PRELOAD_WINDOW, new ReaderPreloader.WindowListener() {
+            @Override
+            public void onWindowChange(int window) {
+                viewPager.setOffscreenPageLimit(window);
+            }
+        });
+        viewPager.addOnPageChangeListener(new ViewPager.SimpleOnPageChangeListener() {
+            @Override
+            public void onPageSelected(int position) {
+                mPreloader.setCurrentPage(position);
+            }
+        });
+        mPreloader.setCurrentPage(viewPager.getCurrentItem());
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPreloader.release();
+    }
+
+    @Override
+    public int getPageCount() {
+        return PAGE_COUNT;
+    }
+
+    @Nullable
+    @Override
+    public String getKey(int page) {
+        final int i = page % 25;
+        if (i >= 0 && i <= 11) {
+            return i % 2 == 0 ? Constants.KEY_JPEG : Constants.KEY_PNG;
+        } else if (i == 24) {
+            return Constants.KEY_BAD;
+        } else {
+            return Constants.KEY_GIF;
+        }
+    }
+
+    @Nullable
+    @Override
+    public String getUrl(int page) {
+        final int i = page % 25;
+        if (i >= 0 && i <= 11) {
+            return i % 2 == 0 ? Constants.URL_JPEG : Constants.URL_PNG;
+        } else if (i == 24) {
+            return Constants.URL_BAD;
+        } else {
+            return Constants.URL_GIF;
+        }
     }
 
 
@@ -49,26 +109,13 @@ public class LargePagerActivity extends AppCompatActivity {
         @Override
         public Fragment getItem(int position) {
             PageFragment fragment = new PageFragment();
-
-            final int i = position % 25;
-            if (i >= 0 && i <= 11) {
-                if (i % 2 == 0) {
-                    fragment.setData(Constants.KEY_JPEG, Constants.URL_JPEG);
-                } else {
-                    fragment.setData(Constants.KEY_PNG, Constants.URL_PNG);
-                }
-            } else if (i == 24) {
-                fragment.setData(Constants.KEY_BAD, Constants.URL_BAD);
-            } else {
-                fragment.setData(Constants.KEY_GIF, Constants.URL_GIF);
-            }
-
+            fragment.setData(LargePagerActivity.this.getKey(position), LargePagerActivity.this.getUrl(position));
             return fragment;
         }
 
         @Override
         public int getCount() {
-            return 100;
+            return PAGE_COUNT;
         }
     }
 }
@@ -27,7 +27,7 @@ import android.widget.ListView;
 
 public class MainActivity extends AppCompatActivity {
 
-    private static final String[] LIST = {"Simple", "Large", "Large Pager"};
+    private static final String[] LIST = {"Simple", "Large", "Large Pager", "Large Stream"};
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -49,6 +49,10 @@ public class MainActivity extends AppCompatActivity {
                     case 2:
                         startActivity(new Intent(MainActivity.this, LargePagerActivity.class));
                         break;
+                    case 3:
+                        startActivity(new Intent(MainActivity.this, LargeActivity.class)
+                                .putExtra(LargeActivity.KEY_STREAM, true));
+                        break;
                 }
             }
         });
@@ -44,6 +44,7 @@ public class PageFragment extends Fragment {
     public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
         View rootView = inflater.inflate(R.layout.activity_large, container, false);
         LargeGukizeView largeGukizeView = (LargeGukizeView) rootView;
+        largeGukizeView.setPreviewEnabled(true);
         largeGukizeView.load(mKey, mUrl);
         return rootView;
     }
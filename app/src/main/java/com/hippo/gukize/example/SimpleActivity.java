@@ -28,7 +28,9 @@ import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 import android.widget.ListView;
 
+import com.hippo.gukize.Gukize;
 import com.hippo.gukize.GukizeView;
+import com.hippo.gukize.PauseOnScrollListener;
 import com.hippo.konwidget.AdvImageView;
 
 public class SimpleActivity extends AppCompatActivity {
@@ -41,6 +43,7 @@ public class SimpleActivity extends AppCompatActivity {
         setContentView(R.layout.activity_simple);
 
         ListView listView = (ListView) findViewById(R.id.list_view);
+        listView.setOnScrollListener(new PauseOnScrollListener());
         listView.setAdapter(new BaseAdapter() {
             @Override
             public int getCount() {
@@ -68,6 +71,7 @@ public class SimpleActivity extends AppCompatActivity {
                     image.setPlaceholderDrawable(resources.getDrawable(R.drawable.placeholder));
                     image.setFailureDrawable(resources.getDrawable(R.drawable.failure));
                     image.setRetryType(GukizeView.RETRY_TYPE_CLICK);
+                    image.setTargetSize(GukizeView.TARGET_SIZE_VIEW, GukizeView.TARGET_SIZE_VIEW);
                     //image.setAutoStart(false);
                 } else {
                     image = (GukizeView) convertView;
@@ -101,4 +105,11 @@ public class SimpleActivity extends AppCompatActivity {
             }
         });
     }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Don't leave Gukize paused if destroyed while flinging
+        Gukize.resume();
+    }
 }
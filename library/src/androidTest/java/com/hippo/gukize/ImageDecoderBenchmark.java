@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.hippo.streampipe.InputStreamPipe;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Compare the one-pass decode of {@link ImageDecoder#decode(InputStreamPipe, int, int)}
+ * with the old two-pass decode, which reads image info and opens the pipe again.
+ * The medians are written to logcat with tag ImageDecoderBenchmark.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageDecoderBenchmark {
+
+    private static final String LOG_TAG = ImageDecoderBenchmark.class.getSimpleName();
+
+    private static final int WARM_UP = 3;
+    private static final int ROUNDS = 20;
+    private static final int TARGET_SIZE = 512;
+
+    private static File sJpeg;
+    private static File sPng;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        final File dir = InstrumentationRegistry.getTargetContext().getCacheDir();
+        sJpeg = new File(dir, "benchmark.jpg");
+        sPng = new File(dir, "benchmark.png");
+        final Bitmap bitmap = Bitmap.createBitmap(2048, 1536, Bitmap.Config.ARGB_8888);
+        final Paint paint = new Paint();
+        paint.setShader(new LinearGradient(0, 0, 2048, 1536, Color.RED, Color.BLUE, Shader.TileMode.MIRROR));
+        new Canvas(bitmap).drawPaint(paint);
+        write(bitmap, Bitmap.CompressFormat.JPEG, sJpeg);
+        write(bitmap, Bitmap.CompressFormat.PNG, sPng);
+        bitmap.recycle();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        sJpeg.delete();
+        sPng.delete();
+    }
+
+    private static void write(Bitmap bitmap, Bitmap.CompressFormat format, File file) throws IOException {
+        final OutputStream os = new FileOutputStream(file);
+        try {
+            bitmap.compress(format, 90, os);
+        } finally {
+            os.close();
+        }
+    }
+
+    @Test
+    public void jpeg() {
+        compare("JPEG", sJpeg);
+    }
+
+    @Test
+    public void png() {
+        compare("PNG", sPng);
+    }
+
+    private static void compare(String name, File file) {
+        final FilePipe pipe = new FilePipe(file);
+        for (int i = 0; i < WARM_UP; i++) {
+            onePass(pipe);
+            twoPass(pipe);
+        }
+
+        final long[] onePass = new long[ROUNDS];
+        final long[] twoPass = new long[ROUNDS];
+        // Interleave them, so both see the same page cache and thermal state
+        for (int i = 0; i < ROUNDS; i++) {
+            onePass[i] = onePass(pipe);
+            twoPass[i] = twoPass(pipe);
+        }
+        Log.i(LOG_TAG, name + " one-pass median " + median(onePass) + "us, two-pass median " +
+                median(twoPass) + "us");
+
+        pipe.mOpenCount = 0;
+        onePass(pipe);
+        assertEquals(1, pipe.mOpenCount);
+        pipe.mOpenCount = 0;
+        twoPass(pipe);
+        assertEquals(2, pipe.mOpenCount);
+    }
+
+    // Return the time in microseconds
+    private static long onePass(FilePipe pipe) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        final IBData data = ImageDecoder.decode(pipe, TARGET_SIZE, TARGET_SIZE);
+        final long time = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        assertNotNull(data);
+        data.recycle();
+        return time;
+    }
+
+    // Return the time in microseconds
+    private static long twoPass(FilePipe pipe) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        IBData data;
+        pipe.obtain();
+        try {
+            data = ImageDecoder.decodeWithInfo(pipe, TARGET_SIZE, TARGET_SIZE);
+        } catch (IOException e) {
+            data = null;
+        } finally {
+            pipe.close();
+            pipe.release();
+        }
+        final long time = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        assertNotNull(data);
+        data.recycle();
+        return time;
+    }
+
+    private static long median(long[] times) {
+        final long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static class FilePipe implements InputStreamPipe {
+
+        private final File mFile;
+        private InputStream mStream;
+        private int mOpenCount;
+
+        private FilePipe(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public void obtain() {}
+
+        @Override
+        public void release() {}
+
+        @Override
+        public InputStream open() throws IOException {
+            if (mStream != null) {
+                throw new IllegalStateException("Please close it first");
+            }
+            ++mOpenCount;
+            mStream = new FileInputStream(mFile);
+            return mStream;
+        }
+
+        @Override
+        public void close() {
+            if (mStream != null) {
+                try {
+                    mStream.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                mStream = null;
+            }
+        }
+    }
+}
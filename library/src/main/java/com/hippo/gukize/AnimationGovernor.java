@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * AnimationGovernor limits how often animations show frames.
+ * <p>
+ * Each {@link Timeline} shows no more than the max fps. If scaled
+ * by area, a small animation on screen gets a lower rate. If the sum
+ * of rates exceeds the frame budget, all rates are scaled down.
+ * Timeline skips frames to keep real time.
+ * All methods must be called in main thread.
+ */
+final class AnimationGovernor {
+    private AnimationGovernor() {}
+
+    // The lowest rate of an animation scaled by area or budget
+    private static final float MIN_FPS = 2.0f;
+    // An animation covers this fraction of screen plays at max fps
+    private static final float FULL_RATE_FRACTION = 0.25f;
+
+    private static int sMaxFps;
+    private static int sFrameBudget;
+    private static boolean sScaleByArea;
+
+    // Ticking timelines, with rates in Timeline.mRate
+    private static final List<Timeline> sTicking = new ArrayList<>();
+
+    static void init(int maxFps, int frameBudget, boolean scaleByArea) {
+        sMaxFps = maxFps;
+        sFrameBudget = frameBudget;
+        sScaleByArea = scaleByArea;
+    }
+
+    /**
+     * Return the min interval in milliseconds between two frames
+     * of the timeline. 0 for no limit.
+     *
+     * @param visibleFraction the fraction of screen the timeline covers
+     */
+    static long getMinInterval(@NonNull Timeline timeline, float visibleFraction) {
+        if (sMaxFps <= 0) {
+            return 0;
+        }
+
+        float rate = sMaxFps;
+        if (sScaleByArea) {
+            rate *= Math.min(1.0f, visibleFraction / FULL_RATE_FRACTION);
+        }
+        rate = Math.max(rate, Math.min(MIN_FPS, sMaxFps));
+
+        if (sFrameBudget > 0) {
+            timeline.mRate = rate;
+            if (!sTicking.contains(timeline)) {
+                sTicking.add(timeline);
+            }
+            // No iterator, it is called for every frame
+            float total = 0.0f;
+            for (int i = 0, n = sTicking.size(); i < n; i++) {
+                total += sTicking.get(i).mRate;
+            }
+            if (total > sFrameBudget) {
+                rate = Math.max(rate * sFrameBudget / total, Math.min(MIN_FPS, sMaxFps));
+            }
+        }
+
+        return (long) (1000 / rate);
+    }
+
+    /**
+     * The timeline stops ticking.
+     */
+    static void remove(@NonNull Timeline timeline) {
+        sTicking.remove(timeline);
+    }
+}
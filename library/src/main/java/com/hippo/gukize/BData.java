@@ -34,29 +34,21 @@ class BData extends IBData {
     }
 
     @Override
-    public void recycle() {
-        // Check referenced
-        if (isReferenced()) {
-            throw new IllegalStateException("Can't recycle a referenced IBData.");
-        }
+    protected void onRecycleData() {
         if (mBitmap != null) {
-            mBitmap.recycle();
+            // Reuse the bitmap
+            BitmapPool.put(mBitmap);
             mBitmap = null;
         }
     }
 
-    @Override
-    public boolean isRecycled() {
-        return mBitmap == null;
-    }
-
     @Override
     public int getByteCount() {
         // Check recycled
         if (mBitmap == null) {
             throw new IllegalStateException("Can't get byte count from a recycled IData.");
         }
-        return mBitmap.getRowBytes() * mBitmap.getHeight();
+        return BitmapPool.getByteCount(mBitmap);
     }
 
     @NonNull
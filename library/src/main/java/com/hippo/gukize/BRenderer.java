@@ -79,6 +79,30 @@ class BRenderer extends IBRenderer {
     @Override
     public void advance() {}
 
+    @Override
+    public int skip() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void render() {}
+
+    @Override
+    public void prepareNext() {}
+
+    @Override
+    public boolean swap() {
+        return false;
+    }
+
+    @Override
+    public void setSample(int sample) {}
+
+    @Override
+    public int getSample() {
+        return 1;
+    }
+
     @Nullable
     @Override
     public Bitmap getBitmap() {
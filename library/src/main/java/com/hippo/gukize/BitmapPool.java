@@ -0,0 +1,229 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A pool of recycled bitmaps, bucketed by config and byte count.
+ * <p>
+ * Before KitKat, a bitmap is reused only for the same size and config.
+ * Since KitKat, the smallest bitmap of the config with enough allocation
+ * is reconfigured, if it is at most {@link #MAX_REUSE_RATIO} times
+ * the bytes needed. The least recently put bitmaps are recycled if the
+ * byte count of the pool exceeds the max size.
+ * All methods are thread-safe.
+ */
+final class BitmapPool {
+    private BitmapPool() {}
+
+    private static final boolean CAN_RECONFIGURE =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+    // A larger bitmap wastes too much memory cache budget
+    private static final int MAX_REUSE_RATIO = 4;
+
+    private static int sMaxSize;
+    private static int sSize;
+    // Bitmaps by config and byte count, the most recently put first in each list
+    private static final Map<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>> sBuckets =
+            new EnumMap<>(Bitmap.Config.class);
+    // All bitmaps, the least recently put first
+    private static final LinkedHashSet<Bitmap> sBitmaps = new LinkedHashSet<>();
+
+    static void init(int maxSize) {
+        sMaxSize = maxSize;
+    }
+
+    /**
+     * Get a bitmap in the size and config from the pool.
+     * The bitmap is erased. Return null if miss.
+     */
+    @Nullable
+    static Bitmap get(int width, int height, @NonNull Bitmap.Config config) {
+        final Bitmap bitmap;
+        synchronized (BitmapPool.class) {
+            bitmap = CAN_RECONFIGURE ? pollReconfigurable(width, height, config) :
+                    pollExact(width, height, config);
+            if (bitmap == null) {
+                return null;
+            }
+            sSize -= getByteCount(bitmap);
+        }
+        if (CAN_RECONFIGURE) {
+            reconfigure(bitmap, width, height, config);
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Get a bitmap from the pool, or create a new one.
+     * Throw {@code OutOfMemoryError} like {@link Bitmap#createBitmap(int, int, Bitmap.Config)}.
+     */
+    @NonNull
+    static Bitmap create(int width, int height, @NonNull Bitmap.Config config) {
+        final Bitmap bitmap = get(width, height, config);
+        if (bitmap != null) {
+            return bitmap;
+        } else {
+            return Bitmap.createBitmap(width, height, config);
+        }
+    }
+
+    /**
+     * Put the bitmap to the pool. It must not be used any more.
+     * The bitmap is recycled if it can't be reused.
+     */
+    static void put(@NonNull Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+
+        final int byteCount = getByteCount(bitmap);
+        final Bitmap.Config config = bitmap.getConfig();
+        if (!bitmap.isMutable() || config == null || byteCount > sMaxSize) {
+            bitmap.recycle();
+            return;
+        }
+
+        synchronized (BitmapPool.class) {
+            if (!sBitmaps.add(bitmap)) {
+                return;
+            }
+            TreeMap<Integer, LinkedList<Bitmap>> bucket = sBuckets.get(config);
+            if (bucket == null) {
+                bucket = new TreeMap<>();
+                sBuckets.put(config, bucket);
+            }
+            LinkedList<Bitmap> list = bucket.get(byteCount);
+            if (list == null) {
+                list = new LinkedList<>();
+                bucket.put(byteCount, list);
+            }
+            list.addFirst(bitmap);
+            sSize += byteCount;
+
+            while (sSize > sMaxSize) {
+                final Iterator<Bitmap> iterator = sBitmaps.iterator();
+                final Bitmap eldest = iterator.next();
+                iterator.remove();
+                removeFromBucket(eldest);
+                sSize -= getByteCount(eldest);
+                eldest.recycle();
+            }
+        }
+    }
+
+    private static void removeFromBucket(Bitmap bitmap) {
+        final TreeMap<Integer, LinkedList<Bitmap>> bucket = sBuckets.get(bitmap.getConfig());
+        final int byteCount = getByteCount(bitmap);
+        final LinkedList<Bitmap> list = bucket.get(byteCount);
+        list.remove(bitmap);
+        if (list.isEmpty()) {
+            bucket.remove(byteCount);
+        }
+    }
+
+    @Nullable
+    private static Bitmap pollExact(int width, int height, Bitmap.Config config) {
+        final TreeMap<Integer, LinkedList<Bitmap>> bucket = sBuckets.get(config);
+        if (bucket == null) {
+            return null;
+        }
+        final LinkedList<Bitmap> list = bucket.get(width * height * getBytesPerPixel(config));
+        if (list == null) {
+            return null;
+        }
+        for (Bitmap bitmap : list) {
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                sBitmaps.remove(bitmap);
+                removeFromBucket(bitmap);
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    // Find the smallest bitmap which is large enough, but not too large
+    @Nullable
+    private static Bitmap pollReconfigurable(int width, int height, Bitmap.Config config) {
+        final TreeMap<Integer, LinkedList<Bitmap>> bucket = sBuckets.get(config);
+        if (bucket == null) {
+            return null;
+        }
+        final int needed = width * height * getBytesPerPixel(config);
+        final Map.Entry<Integer, LinkedList<Bitmap>> entry = bucket.ceilingEntry(needed);
+        if (entry == null || entry.getKey() > (long) needed * MAX_REUSE_RATIO) {
+            return null;
+        }
+        final Bitmap bitmap = entry.getValue().getFirst();
+        sBitmaps.remove(bitmap);
+        removeFromBucket(bitmap);
+        return bitmap;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height ||
+                bitmap.getConfig() != config) {
+            bitmap.reconfigure(width, height, config);
+        }
+    }
+
+    /**
+     * Return the bytes the bitmap takes. Since KitKat, a reused bitmap
+     * might take more than its size needs.
+     */
+    static int getByteCount(@NonNull Bitmap bitmap) {
+        if (CAN_RECONFIGURE) {
+            return getAllocationByteCount(bitmap);
+        } else {
+            return bitmap.getRowBytes() * bitmap.getHeight();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int getAllocationByteCount(Bitmap bitmap) {
+        return bitmap.getAllocationByteCount();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case ARGB_8888:
+            default:
+                return 4;
+        }
+    }
+}
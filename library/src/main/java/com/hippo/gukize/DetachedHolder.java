@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * DetachedHolder keeps loaded drawables of detached {@link GukizeView}
+ * for a while. If the view is attached again in time, the drawable is
+ * still there, with its renderer and frame position. Otherwise the view
+ * releases it. The oldest ones are released first if the byte count
+ * exceeds the max size.
+ * <p>
+ * Views are held weakly, so a destroyed Activity is never kept alive.
+ * If the view is collected, the drawable is recycled here.
+ * All methods must be called in main thread.
+ */
+final class DetachedHolder {
+    private DetachedHolder() {}
+
+    private static long sHoldTime;
+    private static int sMaxSize;
+    private static int sSize;
+    private static Handler sHandler;
+
+    // The oldest held one is the first one
+    private static final LinkedList<Entry> sEntries = new LinkedList<>();
+
+    private static final Runnable sExpireRunnable = new Runnable() {
+        @Override
+        public void run() {
+            releaseExpired();
+        }
+    };
+
+    static void init(long holdTime, int maxSize) {
+        sHoldTime = holdTime;
+        sMaxSize = maxSize;
+        sHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Hold the view with its drawable.
+     * Return false if it can't be held, the view should release it now.
+     */
+    static boolean hold(@NonNull GukizeView view, @NonNull IBDrawable drawable) {
+        final int byteCount = drawable.getByteCount();
+        if (sHoldTime <= 0 || byteCount > sMaxSize) {
+            return false;
+        }
+
+        remove(view);
+        final Entry entry = new Entry(view, drawable, byteCount,
+                SystemClock.uptimeMillis() + sHoldTime);
+        sEntries.add(entry);
+        sSize += byteCount;
+
+        // Release the oldest ones
+        while (sSize > sMaxSize && !sEntries.isEmpty()) {
+            release(sEntries.removeFirst());
+        }
+
+        if (sEntries.size() == 1) {
+            sHandler.postAtTime(sExpireRunnable, entry.expire);
+        }
+        return true;
+    }
+
+    /**
+     * Stop holding the view. The drawable is still in the view.
+     */
+    static void remove(@NonNull GukizeView view) {
+        for (Iterator<Entry> iterator = sEntries.iterator(); iterator.hasNext();) {
+            final Entry entry = iterator.next();
+            if (entry.view.get() == view) {
+                iterator.remove();
+                sSize -= entry.byteCount;
+                if (sEntries.isEmpty()) {
+                    sHandler.removeCallbacks(sExpireRunnable);
+                }
+                return;
+            }
+        }
+    }
+
+    private static void releaseExpired() {
+        final long now = SystemClock.uptimeMillis();
+        while (!sEntries.isEmpty()) {
+            final Entry entry = sEntries.getFirst();
+            if (entry.expire > now) {
+                // Others are newer
+                sHandler.postAtTime(sExpireRunnable, entry.expire);
+                return;
+            }
+            release(sEntries.removeFirst());
+        }
+    }
+
+    private static void release(@NonNull Entry entry) {
+        sSize -= entry.byteCount;
+        final GukizeView view = entry.view.get();
+        if (view != null) {
+            view.releaseHeld();
+        } else {
+            // The view is gone, nobody else recycles it
+            entry.drawable.recycle();
+        }
+    }
+
+    private static class Entry {
+        final WeakReference<GukizeView> view;
+        final IBDrawable drawable;
+        final int byteCount;
+        final long expire;
+
+        Entry(GukizeView view, IBDrawable drawable, int byteCount, long expire) {
+            this.view = new WeakReference<>(view);
+            this.drawable = drawable;
+            this.byteCount = byteCount;
+            this.expire = expire;
+        }
+    }
+}
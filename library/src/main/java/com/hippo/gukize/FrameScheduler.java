@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import com.hippo.yorozuya.thread.PriorityThreadFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The animation engine shared by all animated {@link IBDrawable}.
+ * Due frames wait in one delay queue, and a small fixed pool of
+ * threads renders them. The thread count doesn't grow with
+ * the count of animated images.
+ * <p>
+ * While paused, animations hold their next frames and
+ * continue from the time of resuming.
+ */
+final class FrameScheduler {
+    private FrameScheduler() {}
+
+    private static final String LOG_TAG = FrameScheduler.class.getSimpleName();
+
+    private static ScheduledThreadPoolExecutor sExecutor;
+    private static Handler sHandler;
+
+    // Only touched in main thread
+    private static boolean sPaused;
+    private static final Set<Runnable> sHeld = new LinkedHashSet<>();
+
+    static void init(int threadCount) {
+        sExecutor = new ScheduledThreadPoolExecutor(threadCount,
+                new PriorityThreadFactory(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND));
+        sHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Return true if {@link #init(int)} is called.
+     */
+    static boolean isInit() {
+        return sExecutor != null;
+    }
+
+    /**
+     * Run the runnable in worker thread as soon as possible.
+     */
+    static void execute(@NonNull Runnable runnable) {
+        sExecutor.execute(runnable);
+    }
+
+    /**
+     * Run the runnable in worker thread at the time.
+     * The time base is {@link SystemClock#uptimeMillis()}.
+     */
+    @NonNull
+    static Future<?> schedule(@NonNull Runnable runnable, long when) {
+        final long delay = Math.max(0, when - SystemClock.uptimeMillis());
+        return sExecutor.schedule(runnable, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hold frames until {@link #resume()}.
+     * Must be called in main thread.
+     */
+    static void pause() {
+        sPaused = true;
+    }
+
+    /**
+     * Run all held runnables. Must be called in main thread.
+     */
+    static void resume() {
+        if (!sPaused) {
+            return;
+        }
+        sPaused = false;
+        final ArrayList<Runnable> held = new ArrayList<>(sHeld);
+        sHeld.clear();
+        for (Runnable runnable : held) {
+            runnable.run();
+        }
+    }
+
+    static boolean isPaused() {
+        return sPaused;
+    }
+
+    /**
+     * Run the runnable in main thread when resumed.
+     * Must be called in main thread while paused.
+     */
+    static void hold(@NonNull Runnable runnable) {
+        sHeld.add(runnable);
+    }
+
+    /**
+     * Remove the held runnable. Must be called in main thread.
+     */
+    static void unhold(@NonNull Runnable runnable) {
+        sHeld.remove(runnable);
+    }
+
+    /**
+     * Run the runnable in main thread.
+     */
+    static void post(@NonNull Runnable runnable) {
+        sHandler.post(runnable);
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Read the rect each GIF frame changes, from image descriptors
+ * and disposal methods, while the GIF is decoded.
+ * <p>
+ * Bytes are pushed as the decoder reads them through {@link #tee(InputStream)},
+ * so the GIF is read only once. Pixel data is skipped, not decoded.
+ * It is not thread-safe.
+ */
+final class GifDirtyRects {
+
+    private static final int EXTENSION = 0x21;
+    private static final int IMAGE_DESCRIPTOR = 0x2C;
+    private static final int TRAILER = 0x3B;
+    private static final int GRAPHIC_CONTROL = 0xF9;
+
+    private static final int DISPOSE_BACKGROUND = 2;
+    private static final int DISPOSE_PREVIOUS = 3;
+
+    // Signature, version and logical screen descriptor
+    private static final int HEADER_SIZE = 13;
+    private static final int DESCRIPTOR_SIZE = 9;
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_BLOCK = 1;
+    private static final int STATE_EXTENSION_LABEL = 2;
+    private static final int STATE_GRAPHIC_CONTROL_SIZE = 3;
+    private static final int STATE_GRAPHIC_CONTROL_FLAGS = 4;
+    private static final int STATE_SUB_BLOCK = 5;
+    private static final int STATE_DESCRIPTOR = 6;
+    private static final int STATE_DONE = 7;
+    private static final int STATE_ERROR = 8;
+
+    private int mState = STATE_HEADER;
+    // Bytes to skip before the next byte of the state
+    private long mSkip;
+    // Bytes of header or image descriptor
+    private final byte[] mBuffer = new byte[HEADER_SIZE];
+    private int mBufferSize;
+    private int mGraphicControlSize;
+
+    private int mWidth;
+    private int mHeight;
+    // Left, top, right and bottom of each frame
+    private int[] mRects = new int[4 * 16];
+    private int mFrameCount;
+    private int mDisposal;
+    // The last frame, it might be cleared or restored
+    private int mLastDisposal;
+    private int mLastLeft;
+    private int mLastTop;
+    private int mLastRight;
+    private int mLastBottom;
+
+    /**
+     * Return a stream reading the stream, and pushing all bytes read to it.
+     * The stream doesn't support mark.
+     */
+    @NonNull
+    InputStream tee(@NonNull InputStream is) {
+        return new TeeInputStream(is);
+    }
+
+    /**
+     * Push bytes of the GIF in order.
+     */
+    void write(@NonNull byte[] b, int off, int len) {
+        final int end = off + len;
+        while (off < end) {
+            if (mSkip > 0) {
+                final int n = (int) Math.min(mSkip, end - off);
+                mSkip -= n;
+                off += n;
+            } else if (mState == STATE_DONE || mState == STATE_ERROR) {
+                return;
+            } else {
+                parse(b[off++] & 0xff);
+            }
+        }
+    }
+
+    /**
+     * Push a byte of the GIF in order.
+     */
+    void write(int b) {
+        if (mSkip > 0) {
+            --mSkip;
+        } else if (mState != STATE_DONE && mState != STATE_ERROR) {
+            parse(b);
+        }
+    }
+
+    private void parse(int b) {
+        switch (mState) {
+            case STATE_HEADER:
+                mBuffer[mBufferSize++] = (byte) b;
+                if (mBufferSize == HEADER_SIZE) {
+                    onHeader();
+                }
+                break;
+            case STATE_BLOCK:
+                if (b == EXTENSION) {
+                    mState = STATE_EXTENSION_LABEL;
+                } else if (b == IMAGE_DESCRIPTOR) {
+                    mBufferSize = 0;
+                    mState = STATE_DESCRIPTOR;
+                } else if (b == TRAILER) {
+                    mState = STATE_DONE;
+                } else {
+                    mState = STATE_ERROR;
+                }
+                break;
+            case STATE_EXTENSION_LABEL:
+                mState = b == GRAPHIC_CONTROL ? STATE_GRAPHIC_CONTROL_SIZE : STATE_SUB_BLOCK;
+                break;
+            case STATE_GRAPHIC_CONTROL_SIZE:
+                if (b == 0) {
+                    // No fields, it is the terminator
+                    mState = STATE_BLOCK;
+                } else {
+                    mGraphicControlSize = b;
+                    mState = STATE_GRAPHIC_CONTROL_FLAGS;
+                }
+                break;
+            case STATE_GRAPHIC_CONTROL_FLAGS:
+                mDisposal = (b >> 2) & 0x07;
+                mSkip = mGraphicControlSize - 1;
+                mState = STATE_SUB_BLOCK;
+                break;
+            case STATE_SUB_BLOCK:
+                if (b == 0) {
+                    mState = STATE_BLOCK;
+                } else {
+                    mSkip = b;
+                }
+                break;
+            case STATE_DESCRIPTOR:
+                mBuffer[mBufferSize++] = (byte) b;
+                if (mBufferSize == DESCRIPTOR_SIZE) {
+                    onDescriptor();
+                }
+                break;
+        }
+    }
+
+    private void onHeader() {
+        if (mBuffer[0] != 'G' || mBuffer[1] != 'I' || mBuffer[2] != 'F') {
+            mState = STATE_ERROR;
+            return;
+        }
+        mWidth = readShort(6);
+        mHeight = readShort(8);
+        final int flags = mBuffer[10] & 0xff;
+        if ((flags & 0x80) != 0) {
+            // Global color table
+            mSkip = 3 << ((flags & 0x07) + 1);
+        }
+        mState = STATE_BLOCK;
+    }
+
+    private void onDescriptor() {
+        final int left = Math.min(readShort(0), mWidth);
+        final int top = Math.min(readShort(2), mHeight);
+        final int right = Math.min(left + readShort(4), mWidth);
+        final int bottom = Math.min(top + readShort(6), mHeight);
+        final int flags = mBuffer[8] & 0xff;
+        // LZW code size
+        mSkip = 1;
+        if ((flags & 0x80) != 0) {
+            // Local color table
+            mSkip += 3 << ((flags & 0x07) + 1);
+        }
+        mState = STATE_SUB_BLOCK;
+
+        final int i = mFrameCount * 4;
+        if (i + 4 > mRects.length) {
+            mRects = Arrays.copyOf(mRects, mRects.length * 2);
+        }
+        final int[] rects = mRects;
+        if (mFrameCount == 0) {
+            // The animation starts over, all of it changes
+            rects[0] = 0;
+            rects[1] = 0;
+            rects[2] = mWidth;
+            rects[3] = mHeight;
+        } else if (mLastDisposal == DISPOSE_BACKGROUND || mLastDisposal == DISPOSE_PREVIOUS) {
+            rects[i] = Math.min(left, mLastLeft);
+            rects[i + 1] = Math.min(top, mLastTop);
+            rects[i + 2] = Math.max(right, mLastRight);
+            rects[i + 3] = Math.max(bottom, mLastBottom);
+        } else {
+            rects[i] = left;
+            rects[i + 1] = top;
+            rects[i + 2] = right;
+            rects[i + 3] = bottom;
+        }
+        mLastDisposal = mDisposal;
+        mLastLeft = left;
+        mLastTop = top;
+        mLastRight = right;
+        mLastBottom = bottom;
+        mDisposal = 0;
+        ++mFrameCount;
+    }
+
+    private int readShort(int offset) {
+        return (mBuffer[offset] & 0xff) | ((mBuffer[offset + 1] & 0xff) << 8);
+    }
+
+    /**
+     * Return left, top, right and bottom of the changed rect of each frame.
+     * The first frame changes the whole image, as the animation starts over.
+     * Return null if it is not a GIF or the frame count doesn't match.
+     */
+    @Nullable
+    int[] getRects(int frameCount) {
+        if (mState == STATE_ERROR || frameCount <= 0 || frameCount != mFrameCount) {
+            return null;
+        }
+        return Arrays.copyOf(mRects, frameCount * 4);
+    }
+
+    private class TeeInputStream extends FilterInputStream {
+
+        private byte[] mSkipBuffer;
+
+        private TeeInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b >= 0) {
+                write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            final int n = in.read(b, off, len);
+            if (n > 0) {
+                write(b, off, n);
+            }
+            return n;
+        }
+
+        // Skipped bytes must be pushed too
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            if (mSkipBuffer == null) {
+                mSkipBuffer = new byte[4096];
+            }
+            return Math.max(0, read(mSkipBuffer, 0, (int) Math.min(n, mSkipBuffer.length)));
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {}
+
+        @Override
+        public synchronized void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+    }
+}
@@ -20,25 +20,53 @@ package com.hippo.gukize;
  * Created by Hippo on 8/22/2016.
  */
 
-import android.graphics.Bitmap;
+import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Log;
 
 import com.hippo.conaco.Conaco;
 import com.hippo.conaco.ValueHelper;
-import com.hippo.image.BitmapDecoder;
-import com.hippo.image.Image;
-import com.hippo.image.ImageData;
-import com.hippo.image.ImageInfo;
-import com.hippo.image.ImageRenderer;
 import com.hippo.streampipe.InputStreamPipe;
 
-import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.List;
 
 public class Gukize {
     private Gukize() {}
 
+    @IntDef({PREFETCH_DISK_ONLY, PREFETCH_DECODED})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface PrefetchLevel {}
+
+    /**
+     * Only download the image to disk cache, then check its head.
+     */
+    public static final int PREFETCH_DISK_ONLY = 0;
+    /**
+     * Download the image and decode it at full size to memory cache,
+     * keyed by the key. Views loading at a target size keep their own
+     * sized entries, so they only get the disk cache from it.
+     */
+    public static final int PREFETCH_DECODED = 1;
+
+    @IntDef({PRIORITY_PREFETCH, PRIORITY_NEAR_VISIBLE, PRIORITY_VISIBLE})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface LoadPriority {}
+
+    /**
+     * The priority of prefetch.
+     */
+    public static final int PRIORITY_PREFETCH = 0;
+    /**
+     * The priority of views about to be shown.
+     */
+    public static final int PRIORITY_NEAR_VISIBLE = 1;
+    /**
+     * The priority of views shown on screen.
+     */
+    public static final int PRIORITY_VISIBLE = 2;
+
     private static Conaco<IBData> sConaco;
 
     public static void init(Builder builder) {
@@ -46,8 +74,46 @@ public class Gukize {
             throw new IllegalStateException("Can't init Gukize twice");
         }
         builder.isValid();
-        IBDrawable.init(builder.coreAnimatedThreadCount);
-        sConaco = builder.build();
+
+        // All caches of Gukize share memoryCacheMaxSize,
+        // Conaco's memory cache takes the rest
+        final int total = builder.memoryCacheMaxSize;
+        final int frameCacheTotalSize = builder.animationFrameCacheTotalSize >= 0 ?
+                builder.animationFrameCacheTotalSize :
+                builder.animationFrameCacheSize > 0 ? total / 8 : 0;
+        final int sizedMemoryCacheMaxSize = builder.sizedMemoryCacheMaxSize >= 0 ?
+                builder.sizedMemoryCacheMaxSize : total / 4;
+        final int bitmapPoolMaxSize = builder.bitmapPoolMaxSize >= 0 ?
+                builder.bitmapPoolMaxSize : total / 8;
+        final int detachedHoldMaxSize = builder.detachedHoldMaxSize >= 0 ?
+                builder.detachedHoldMaxSize : total / 16;
+        final long rest = (long) total - frameCacheTotalSize - sizedMemoryCacheMaxSize -
+                bitmapPoolMaxSize - detachedHoldMaxSize;
+        if (rest <= 0) {
+            throw new IllegalStateException("The sizes of Gukize caches exceed memoryCacheMaxSize");
+        }
+
+        FrameScheduler.init(builder.animatedThreadCount);
+        IRenderer.init(builder.doubleBufferAnimation, builder.animationFrameCacheSize,
+                frameCacheTotalSize);
+        IData.init(builder.shareAnimation);
+        AnimationGovernor.init(builder.animationMaxFps, builder.animationFrameBudget,
+                builder.scaleAnimationByArea);
+        ReferenceTracker.init(builder.debug);
+        MemoryCache.init(sizedMemoryCacheMaxSize);
+        SizedLoader.init(builder.decodeThreadCount);
+        ProgressiveDecoder.init();
+        LoadScheduler.init(builder.diskLoadCount, builder.networkLoadCount);
+        DetachedHolder.init(builder.detachedHoldTime, detachedHoldMaxSize);
+        Prefetcher.init();
+        BitmapPool.init(bitmapPoolMaxSize);
+        // Build Conaco with the rest, but leave the caller's builder as it was
+        builder.memoryCacheMaxSize = (int) rest;
+        try {
+            sConaco = builder.build();
+        } finally {
+            builder.memoryCacheMaxSize = total;
+        }
     }
 
     public static Conaco<IBData> getConaco() {
@@ -57,70 +123,117 @@ public class Gukize {
         return sConaco;
     }
 
-    private static class ImageDataHelper implements ValueHelper<IBData> {
+    /**
+     * Hold loads, decodes and animation frames, for example while the list
+     * is flinging. Images in memory cache are still shown,
+     * and decoded prefetches of them are still done.
+     * Must be called in main thread.
+     */
+    public static void pause() {
+        getConaco();
+        LoadScheduler.pause();
+        FrameScheduler.pause();
+    }
+
+    /**
+     * Continue the work held by {@link #pause()}. Loads of
+     * detached views are already cancelled, so only attached views are served.
+     * Must be called in main thread.
+     */
+    public static void resume() {
+        getConaco();
+        LoadScheduler.resume();
+        FrameScheduler.resume();
+        Prefetcher.schedule();
+    }
+
+    /**
+     * Return true if it is paused. Must be called in main thread.
+     */
+    public static boolean isPaused() {
+        return LoadScheduler.isPaused();
+    }
+
+    /**
+     * Return the count of animation frames skipped to keep real time,
+     * by frame rate limits or late rendering.
+     */
+    public static long getSkippedFrameCount() {
+        return Timeline.getSkippedFrameCount();
+    }
+
+    /**
+     * Return the count of animation frames skipped because
+     * rendering falls behind wall-clock time.
+     */
+    public static long getLateSkippedFrameCount() {
+        return Timeline.getLateSkippedFrameCount();
+    }
+
+    /**
+     * Return how many loads fail at once because
+     * the key failed recently. Must be called in main thread.
+     */
+    public static int getNegativeCacheHitCount() {
+        return NegativeCache.getHitCount();
+    }
+
+    /**
+     * Load the image without view. Prefetch waits while views are loading.
+     * Must be called in main thread.
+     */
+    public static void prefetch(@NonNull String key, @NonNull String url, @PrefetchLevel int level) {
+        prefetch(key, url, level, null, null);
+    }
+
+    /**
+     * Load the image without view. Prefetch waits while views are loading.
+     * It can be cancelled by {@link #cancelPrefetch(Object)} with the tag.
+     * Must be called in main thread.
+     */
+    public static void prefetch(@NonNull String key, @NonNull String url, @PrefetchLevel int level,
+            @Nullable Object tag, @Nullable PrefetchListener listener) {
+        getConaco();
+        Prefetcher.prefetch(key, url, level, tag, listener);
+    }
 
-        private static final String LOG_TAG = ImageDataHelper.class.getSimpleName();
+    /**
+     * Prefetch images in order. Keys and urls must be in the same size.
+     * Must be called in main thread.
+     */
+    public static void prefetch(@NonNull List<String> keys, @NonNull List<String> urls,
+            @PrefetchLevel int level, @Nullable Object tag, @Nullable PrefetchListener listener) {
+        if (keys.size() != urls.size()) {
+            throw new IllegalArgumentException("Keys and urls must be in the same size");
+        }
+        getConaco();
+        for (int i = 0, n = keys.size(); i < n; i++) {
+            Prefetcher.prefetch(keys.get(i), urls.get(i), level, tag, listener);
+        }
+    }
+
+    /**
+     * Cancel all pending and running prefetches with the tag.
+     * Must be called in main thread.
+     */
+    public static void cancelPrefetch(@NonNull Object tag) {
+        getConaco();
+        Prefetcher.cancel(tag);
+    }
+
+    public interface PrefetchListener {
+        /**
+         * Called in main thread when a prefetch is done.
+         */
+        void onPrefetch(@NonNull String key, boolean success);
+    }
+
+    private static class ImageDataHelper implements ValueHelper<IBData> {
 
         @Nullable
         @Override
         public IBData decode(@NonNull InputStreamPipe isPipe) {
-            try {
-                isPipe.obtain();
-
-                // Get image info
-                final ImageInfo info = new ImageInfo();
-                if (!BitmapDecoder.decode(isPipe.open(), info)) {
-                    Log.w(LOG_TAG, "This InputSteam is not a Image.");
-                    return null;
-                }
-                isPipe.close();
-
-                if (info.frameCount == 1) {
-                    // It is a static image, use Bitmap
-                    final Bitmap bitmap = BitmapDecoder.decode(isPipe.open());
-                    if (bitmap != null) {
-                        return new BData(bitmap);
-                    } else {
-                        return null;
-                    }
-                } else {
-                    // It may be a animated image
-                    final ImageData imageData = Image.decode(isPipe.open());
-                    if (imageData != null) {
-                        if (imageData.getFrameCount() == 1) {
-                            // It is a static image, draw image to Bitmap
-                            final Bitmap bitmap;
-                            try {
-                                bitmap = Bitmap.createBitmap(imageData.getWidth(), imageData.getHeight(),
-                                        imageData.isOpaque() ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
-                            } catch (OutOfMemoryError e) {
-                                Log.d(LOG_TAG, "Can't create Bitmap, out of memory.");
-                                imageData.recycle();
-                                return null;
-                            }
-
-                            final ImageRenderer imageRenderer = imageData.createImageRenderer();
-                            imageRenderer.render(bitmap, 0, 0, 0, 0, imageData.getWidth(), imageData.getHeight(), 1, false, 0);
-                            imageRenderer.recycle();
-                            imageData.recycle();
-
-                            return new BData(bitmap);
-                        } else {
-                            // It is a animated
-                            // Fix odd delay
-                            imageData.setBrowserCompat(true);
-                            return new IData(imageData);
-                        }
-                    } else {
-                        return null;
-                    }
-                }
-            } catch (IOException e) {
-                return null;
-            } finally {
-                isPipe.close();
-                isPipe.release();
-            }
+            return ImageDecoder.decode(isPipe, 0, 0);
         }
 
         @Override
@@ -130,12 +243,16 @@ public class Gukize {
 
         @Override
         public void onAddToMemoryCache(@NonNull String key, @NonNull IBData value) {
-            value.addReference();
+            value.addReference(this);
+            MemoryCache.onAddToConaco(key, value);
         }
 
         @Override
         public void onRemoveFromMemoryCache(@NonNull String key, @NonNull IBData value) {
-            value.removeReference();
+            MemoryCache.onRemoveFromConaco(key, value);
+            // It might be still shown, keep it findable
+            WeakCache.put(key, value);
+            value.removeReference(this);
         }
 
         @Override
@@ -147,10 +264,115 @@ public class Gukize {
     public static class Builder extends Conaco.Builder<IBData> {
 
         /**
-         * The core thread count for animated image.
-         * 0 ~ 3 is fine. More animated image for large number.
+         * The thread count for animated image.
+         * All animated images share these threads.
+         * 1 ~ 3 is fine. More animated image for large number.
+         */
+        public int animatedThreadCount = 2;
+
+        /**
+         * Whether render animated image with a front buffer and a back buffer.
+         * Next frame is rendered to back buffer before it is due,
+         * and shown by swapping buffers. It takes one more bitmap
+         * for each animated image.
+         */
+        public boolean doubleBufferAnimation = false;
+
+        /**
+         * Whether all views showing the same animated image share
+         * one renderer, one frame bitmap and one timeline.
+         * A view joins the running timeline instead of playing
+         * from the first frame.
          */
-        public int coreAnimatedThreadCount = 0;
+        public boolean shareAnimation = false;
+
+        /**
+         * The max frames per second of each animated image.
+         * Frames are skipped to keep real time.
+         * 0 for no limit.
+         */
+        public int animationMaxFps = 60;
+
+        /**
+         * The max frames per second of all animated images together.
+         * If exceeded, every animated image plays at a lower rate.
+         * It only works with {@link #animationMaxFps}. 0 for no limit.
+         */
+        public int animationFrameBudget = 0;
+
+        /**
+         * Whether scale the frame rate of animated image by the area it
+         * covers on screen. It plays at {@link #animationMaxFps} if it
+         * covers a quarter of the screen, and slower if smaller.
+         */
+        public boolean scaleAnimationByArea = false;
+
+        /**
+         * The max byte count of all frames of an animated image to keep
+         * them all in memory. Each frame is decoded only once, later loops
+         * only swap bitmaps. Larger animated images decode frames in every loop.
+         * 0 to disable it.
+         */
+        public int animationFrameCacheSize = 0;
+
+        /**
+         * The max byte count of all frames kept by all animated images,
+         * see {@link #animationFrameCacheSize}. It is taken from {@code memoryCacheMaxSize}.
+         * If it is negative, {@code memoryCacheMaxSize / 8} is used,
+         * or 0 if {@link #animationFrameCacheSize} is 0.
+         */
+        public int animationFrameCacheTotalSize = -1;
+
+        /**
+         * The memory cache size for images decoded to a target size,
+         * see {@link GukizeView#setTargetSize(int, int)}. Images still
+         * shown after evicted from memory cache are promoted to it too.
+         * It is taken from {@code memoryCacheMaxSize}, can't be 0.
+         * If it is negative, {@code memoryCacheMaxSize / 4} is used.
+         */
+        public int sizedMemoryCacheMaxSize = -1;
+
+        /**
+         * The max byte count of recycled bitmaps kept for reuse.
+         * 0 to disable bitmap reuse. It is taken from {@code memoryCacheMaxSize}.
+         * If it is negative, {@code memoryCacheMaxSize / 8} is used.
+         */
+        public int bitmapPoolMaxSize = -1;
+
+        /**
+         * The max count of loads reading disk cache at the same time.
+         * Other loads wait, the ones with higher priority start first.
+         * Images in memory cache are shown without waiting.
+         */
+        public int diskLoadCount = 2;
+
+        /**
+         * The max count of loads downloading at the same time.
+         * A load downloads only if the image is not in disk cache.
+         * Other loads wait, the ones with higher priority start first.
+         */
+        public int networkLoadCount = 4;
+
+        /**
+         * The thread count to decode images to a target size.
+         * Decode tasks wait in priority order.
+         */
+        public int decodeThreadCount = 2;
+
+        /**
+         * How long in milliseconds a detached {@link GukizeView} keeps its
+         * loaded drawable. If it is attached again in time, the image is shown
+         * at once and animation continues from the same frame.
+         * 0 to release the drawable on detach.
+         */
+        public long detachedHoldTime = 3000;
+
+        /**
+         * The max byte count of drawables kept by detached views.
+         * It is taken from {@code memoryCacheMaxSize}.
+         * If it is negative, {@code memoryCacheMaxSize / 16} is used.
+         */
+        public int detachedHoldMaxSize = -1;
 
         public Builder() {
             valueHelper = new ImageDataHelper();
@@ -165,6 +387,24 @@ public class Gukize {
             if (!(valueHelper instanceof ImageDataHelper)) {
                 throw new IllegalStateException("Don't assign objectHelper");
             }
+            if (animatedThreadCount <= 0) {
+                throw new IllegalStateException("animatedThreadCount must be positive");
+            }
+            if (animationMaxFps < 0 || animationFrameBudget < 0) {
+                throw new IllegalStateException("animationMaxFps and animationFrameBudget can't be negative");
+            }
+            if (animationFrameCacheSize < 0) {
+                throw new IllegalStateException("animationFrameCacheSize can't be negative");
+            }
+            if (sizedMemoryCacheMaxSize == 0) {
+                throw new IllegalStateException("sizedMemoryCacheMaxSize can't be 0");
+            }
+            if (diskLoadCount <= 0 || networkLoadCount <= 0) {
+                throw new IllegalStateException("diskLoadCount and networkLoadCount must be positive");
+            }
+            if (decodeThreadCount <= 0) {
+                throw new IllegalStateException("decodeThreadCount must be positive");
+            }
         }
     }
 }
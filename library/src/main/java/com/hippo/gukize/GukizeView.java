@@ -29,6 +29,7 @@ import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.view.ViewCompat;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -68,6 +69,15 @@ public class GukizeView extends AdvImageView implements Unikery<IBData>,
     public static final int RETRY_TYPE_CLICK = 1;
     public static final int RETRY_TYPE_LONG_CLICK = 2;
 
+    /**
+     * Decode the image at full size.
+     */
+    public static final int TARGET_SIZE_NONE = 0;
+    /**
+     * Decode the image at the size of the view, after it is laid out.
+     */
+    public static final int TARGET_SIZE_VIEW = -1;
+
     private static final int TIME_TRANSITION = 300;
 
     private int mId = Unikery.INVALID_ID;
@@ -80,6 +90,16 @@ public class GukizeView extends AdvImageView implements Unikery<IBData>,
     private boolean mUseNetwork;
     private boolean mHasData;
 
+    private int mTargetWidth = TARGET_SIZE_NONE;
+    private int mTargetHeight = TARGET_SIZE_NONE;
+    // Whether the load waits for layout to get target size
+    private boolean mWaitLayout;
+    // The load in flight, shared with other views of the same key
+    @Nullable
+    private SharedLoad mLoad;
+    @Gukize.LoadPriority
+    private int mLoadPriority = Gukize.PRIORITY_VISIBLE;
+
     @DrawableState
     private int mDrawableState = DRAWABLE_NONE;
 
@@ -150,7 +170,30 @@ public class GukizeView extends AdvImageView implements Unikery<IBData>,
      * Return true if the load task is running now.
      */
     public boolean isLoading() {
-        return mId != Unikery.INVALID_ID;
+        return mLoad != null;
+    }
+
+    /**
+     * Set the target size to decode static image. The image is subsampled
+     * to the size and cached with the size. {@link #TARGET_SIZE_VIEW}
+     * for the size of the view, {@link #TARGET_SIZE_NONE} for full size.
+     * It takes effect in next load.
+     */
+    public void setTargetSize(int width, int height) {
+        mTargetWidth = width;
+        mTargetHeight = height;
+    }
+
+    /**
+     * Set the load priority. Lower it if the view scrolls out
+     * but is still kept, the load in flight is re-prioritized.
+     * {@link Gukize#PRIORITY_VISIBLE} by default.
+     */
+    public void setLoadPriority(@Gukize.LoadPriority int priority) {
+        mLoadPriority = priority;
+        if (mLoad != null) {
+            mLoad.setPriority(this, priority);
+        }
     }
 
     /**
@@ -259,6 +302,9 @@ public class GukizeView extends AdvImageView implements Unikery<IBData>,
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
 
+        // Attached in time, keep the drawable
+        DetachedHolder.remove(this);
+
         if (mHasData && !isLoading() && mDrawableState != DRAWABLE_LOAD) {
             load(mKey, mUrl, mContainer, mUseNetwork);
         }
@@ -270,10 +316,19 @@ public class GukizeView extends AdvImageView implements Unikery<IBData>,
 
         // Avoid a lot of tasks stuck.
         if (isLoading()) {
-            mConaco.cancel(this);
+            cancelLoad();
         }
-        // Free loaded drawable.
-        if (mDrawableState == DRAWABLE_LOAD) {
+        mWaitLayout = false;
+        // Free loaded drawable, or hold it for a while
+        final IBDrawable drawable = getLoadedImageDrawable();
+        if (drawable != null && !DetachedHolder.hold(this, drawable)) {
+            setDrawable(null, DRAWABLE_NONE, false);
+        }
+    }
+
+    // Called by DetachedHolder if not attached in time
+    void releaseHeld() {
+        if (mDrawableState == DRAWABLE_LOAD && !ViewCompat.isAttachedToWindow(this)) {
             setDrawable(null, DRAWABLE_NONE, false);
         }
     }
@@ -287,6 +342,16 @@ public class GukizeView extends AdvImageView implements Unikery<IBData>,
     }
 
     public void load(String key, String url, DataContainer container, boolean useNetwork) {
+        load(key, url, container, useNetwork, false);
+    }
+
+    // Retry bypasses negative cache
+    private void load(String key, String url, DataContainer container, boolean useNetwork, boolean retry) {
+        // The held drawable is for another image
+        if (key == null || !key.equals(mKey)) {
+            releaseHeld();
+        }
+
         mKey = key;
         mUrl = url;
         mContainer = container;
@@ -295,6 +360,20 @@ public class GukizeView extends AdvImageView implements Unikery<IBData>,
         mHasData = true;
 
         if (ViewCompat.isAttachedToWindow(this)) {
+            // Get target size
+            int targetWidth = mTargetWidth;
+            int targetHeight = mTargetHeight;
+            if (targetWidth == TARGET_SIZE_VIEW || targetHeight == TARGET_SIZE_VIEW) {
+                targetWidth = getWidth() - getPaddingLeft() - getPaddingRight();
+                targetHeight = getHeight() - getPaddingTop() - getPaddingBottom();
+                if (targetWidth <= 0 || targetHeight <= 0) {
+                    // Load it after layout
+                    mWaitLayout = true;
+                    return;
+                }
+            }
+            mWaitLayout = false;
+
             if (mListener != null) {
                 mListener.onLoad();
             }
@@ -305,7 +384,74 @@ public class GukizeView extends AdvImageView implements Unikery<IBData>,
             builder.url = url;
             builder.dataContainer = container;
             builder.useNetwork = useNetwork;
-            mConaco.load(builder);
+
+            // The memory cache key with size bucket
+            final boolean sized = targetWidth > 0 && targetHeight > 0;
+            final int bucketWidth = sized ? SizedLoader.getBucket(targetWidth) : 0;
+            final int bucketHeight = sized ? SizedLoader.getBucket(targetHeight) : 0;
+            final String memoryKey = sized ? SizedLoader.getKey(key, bucketWidth, bucketHeight) : key;
+
+            // Find it in memory caches and weak cache
+            IBData value = MemoryCache.get(memoryKey);
+            if (value == null) {
+                value = WeakCache.promote(memoryKey);
+            }
+            if (value != null) {
+                cancelLoad();
+                onGetValue(value, Conaco.SOURCE_MEMORY);
+                return;
+            }
+
+            // It failed recently
+            if (!retry && NegativeCache.contains(key)) {
+                cancelLoad();
+                onFailure();
+                return;
+            }
+
+            if (sized) {
+                onMiss(Conaco.SOURCE_MEMORY);
+                // Decode it in SizedLoader
+                builder.skipDecode = true;
+            }
+
+            // Keep the old load if it is the same key, in case it is the last subscriber
+            if (mLoad != null && !memoryKey.equals(mLoad.getKey())) {
+                cancelLoad();
+            }
+            final SharedLoad oldLoad = mLoad;
+            mLoad = null;
+            final SharedLoad load = SharedLoad.load(mConaco, builder, memoryKey,
+                    bucketWidth, bucketHeight, mLoadPriority);
+            if (oldLoad != null && oldLoad != load) {
+                oldLoad.unsubscribe(this);
+            }
+            mLoad = load;
+        }
+    }
+
+    private void cancelLoad() {
+        if (mLoad != null) {
+            final SharedLoad load = mLoad;
+            mLoad = null;
+            load.unsubscribe(this);
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+
+        if (mWaitLayout && w > 0 && h > 0) {
+            // Don't load in layout pass
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mWaitLayout && mHasData) {
+                        load(mKey, mUrl, mContainer, mUseNetwork);
+                    }
+                }
+            });
         }
     }
 
@@ -319,8 +465,9 @@ public class GukizeView extends AdvImageView implements Unikery<IBData>,
         mContainer = null;
 
         mHasData = false;
+        mWaitLayout = false;
 
-        mConaco.cancel(this);
+        cancelLoad();
         setDrawable(drawable, DRAWABLE_CUSTOM, true);
     }
 
@@ -405,6 +552,7 @@ public class GukizeView extends AdvImageView implements Unikery<IBData>,
         // Release old loaded image drawable
         final IBDrawable oldImageDrawable = getLoadedImageDrawable();
         if (oldImageDrawable != null) {
+            DetachedHolder.remove(this);
             oldImageDrawable.recycle();
         }
 
@@ -454,25 +602,30 @@ public class GukizeView extends AdvImageView implements Unikery<IBData>,
 
     @Override
     public void onGetValue(@NonNull IBData value, @Conaco.Source int source) {
-        // The IBData might be recycled, but it's small probability event.
-        if (value.isRecycled()) {
-            Log.w(LOG_TAG, "IBData is recycled in GukizeView.onGetValue(), need larger memory cache.");
-            onFailure();
-            return;
-        }
+        mLoad = null;
 
         // We use onDetachedFromWindow to handle IBData recycle.
         // So can't use IBData when detached from window.
         if (!ViewCompat.isAttachedToWindow(this)) {
             // If IBData is not referenced, it must be not in memory cache.
             // Recycle it now to avoid memory leak.
-            if (!value.isReferenced()) {
-                value.recycle();
-            }
+            value.tryRecycle();
             return;
         }
 
-        final IBDrawable imageDrawable = new IBDrawable(value.createRenderer());
+        // The IBData might be recycled by memory cache in other thread,
+        // but it's small probability event. Hold it while creating drawable.
+        if (!value.tryAddReference(this)) {
+            Log.w(LOG_TAG, "IBData is recycled in GukizeView.onGetValue(), need larger memory cache.");
+            onFailure();
+            return;
+        }
+        final IBDrawable imageDrawable;
+        try {
+            imageDrawable = value.createDrawable();
+        } finally {
+            value.removeReference(this);
+        }
         if (mAutoStart) {
             imageDrawable.start();
         }
@@ -486,11 +639,14 @@ public class GukizeView extends AdvImageView implements Unikery<IBData>,
 
     @Override
     public void onGetPipe(@NonNull InputStreamPipe pipe) {
+        // The pipe is decoded in SharedLoad
         throw new IllegalStateException("Not support onGetPipe.");
     }
 
     @Override
     public void onFailure() {
+        mLoad = null;
+
         setDrawable(mFailureDrawable, DRAWABLE_FAILURE, false);
 
         if (mListener != null) {
@@ -540,7 +696,7 @@ public class GukizeView extends AdvImageView implements Unikery<IBData>,
             if (mListener != null) {
                 mListener.onRetry();
             }
-            load(mKey, mUrl, mContainer, mUseNetwork);
+            load(mKey, mUrl, mContainer, mUseNetwork, true);
         }
     }
 
@@ -550,7 +706,7 @@ public class GukizeView extends AdvImageView implements Unikery<IBData>,
             if (mListener != null) {
                 mListener.onRetry();
             }
-            load(mKey, mUrl, mContainer, mUseNetwork);
+            load(mKey, mUrl, mContainer, mUseNetwork, true);
         }
         return true;
     }
@@ -21,6 +21,9 @@ package com.hippo.gukize;
  */
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class store image data, {@link android.graphics.Bitmap}
@@ -28,48 +31,124 @@ import android.support.annotation.NonNull;
  */
 abstract class IBData {
 
-    private int mReference;
+    private static final int RECYCLED = -1;
+
+    // Reference count, or RECYCLED
+    private final AtomicInteger mReference = new AtomicInteger();
+    @Nullable
+    private final ReferenceTracker.Tracker mTracker;
+
+    protected IBData() {
+        mTracker = ReferenceTracker.track(this);
+    }
 
     /**
      * Return true if the IBData is referenced.
      */
     public boolean isReferenced() {
-        return mReference != 0;
+        return mReference.get() > 0;
     }
 
     /**
      * Add reference keep IBData away from recycling.
+     * The holder must remove it by {@link #removeReference(Object)}.
+     * Throw {@code IllegalStateException} if the IBData is recycled.
      */
-    public void addReference() {
-        ++mReference;
+    public void addReference(@NonNull Object holder) {
+        if (!tryAddReference(holder)) {
+            throw new IllegalStateException("Can't add reference to a recycled IBData.");
+        }
     }
 
     /**
-     * Remove reference. If no reference attached to
+     * Add reference if the IBData is not recycled.
+     * Return false if the IBData is recycled.
+     * It's safe to call it in any thread.
+     */
+    public boolean tryAddReference(@NonNull Object holder) {
+        for (;;) {
+            final int reference = mReference.get();
+            if (reference == RECYCLED) {
+                return false;
+            }
+            if (mReference.compareAndSet(reference, reference + 1)) {
+                if (mTracker != null) {
+                    mTracker.onAddReference(holder);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Remove reference added by the holder. If no reference attached to
      * the IBData, {@link #recycle} will be called automatically.
      */
-    public void removeReference() {
-        --mReference;
-        // Check reference valid
-        if (mReference < 0) {
-            throw new IllegalStateException();
+    public void removeReference(@NonNull Object holder) {
+        for (;;) {
+            final int reference = mReference.get();
+            // Check reference valid
+            if (reference <= 0) {
+                throw new IllegalStateException("Can't remove reference from a unreferenced IBData.");
+            }
+            // Auto recycle, only the thread removing the last reference does it
+            final int newReference = reference == 1 ? RECYCLED : reference - 1;
+            if (mReference.compareAndSet(reference, newReference)) {
+                if (mTracker != null) {
+                    mTracker.onRemoveReference(holder);
+                }
+                if (newReference == RECYCLED) {
+                    onRecycle();
+                }
+                return;
+            }
         }
+    }
 
-        // Auto recycle
-        if (mReference == 0) {
-            recycle();
+    /**
+     * Recycle the IBData. Nothing happens if it is recycled.
+     * Throw {@code IllegalStateException} if the IBData is referenced.
+     */
+    public void recycle() {
+        if (!tryRecycle() && isReferenced()) {
+            throw new IllegalStateException("Can't recycle a referenced IBData.");
         }
     }
 
     /**
-     * Recycle the IBData.
+     * Recycle the IBData if it is not referenced or recycled.
+     * Return true if it is recycled by this call.
+     * It's safe to call it in any thread.
      */
-    public abstract void recycle();
+    public boolean tryRecycle() {
+        if (mReference.compareAndSet(0, RECYCLED)) {
+            onRecycle();
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    // Called exactly once
+    private void onRecycle() {
+        if (mTracker != null) {
+            mTracker.onRecycle();
+        }
+        onRecycleData();
+    }
+
+    /**
+     * Free the image data. Called exactly once,
+     * after the IBData becomes recycled.
+     */
+    protected abstract void onRecycleData();
 
     /**
      * Return true if the IBData is recycled.
      */
-    public abstract boolean isRecycled();
+    public boolean isRecycled() {
+        return mReference.get() == RECYCLED;
+    }
 
     /**
      * Return the byte count of the IBData.
@@ -85,4 +164,15 @@ abstract class IBData {
      */
     @NonNull
     public abstract IBRenderer createRenderer();
+
+    /**
+     * Create a IBDrawable to show the IBData.
+     * Throw {@code IllegalStateException}
+     * if the IBData is recycled.
+     * Must be called in main thread.
+     */
+    @NonNull
+    public IBDrawable createDrawable() {
+        return new IBDrawable(createRenderer());
+    }
 }
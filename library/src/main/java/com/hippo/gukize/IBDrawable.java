@@ -25,43 +25,21 @@ import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 import android.graphics.Paint;
 import android.graphics.PixelFormat;
+import android.graphics.Rect;
 import android.graphics.drawable.Animatable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
-import android.os.Process;
-import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import com.hippo.yorozuya.thread.InfiniteThreadExecutor;
-import com.hippo.yorozuya.thread.PriorityThreadFactory;
-
-import java.util.Deque;
-import java.util.LinkedList;
-import java.util.concurrent.Executor;
-
 /**
  * A drawable to draw {@link IBRenderer}.
  */
-class IBDrawable extends Drawable implements Animatable, Runnable {
-
-    private static final String LOG_TAG = IBDrawable.class.getSimpleName();
-
-    private static Executor sExecutor;
-
-    static void init(int coreThreadCount) {
-        sExecutor = new InfiniteThreadExecutor(
-                coreThreadCount,
-                3000, // 3000ms
-                new LinkedList<Runnable>(),
-                new PriorityThreadFactory(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND)
-        );
-    }
+class IBDrawable extends Drawable implements Animatable {
 
     private final IBRenderer mIBRenderer;
     private final Paint mPaint;
     @Nullable
-    private final Task mTask;
+    private final Timeline mTimeline;
 
     /** Whether the drawable has an animation callback posted. */
     private boolean mRunning;
@@ -69,25 +47,46 @@ class IBDrawable extends Drawable implements Animatable, Runnable {
     /** Whether the drawable should animate when visible. */
     private boolean mAnimating;
 
+    /** Whether the drawable was running when hidden. */
+    private boolean mRunningWhenHidden;
+
+    private boolean mRecycled;
+
     public IBDrawable(@NonNull IBRenderer ibRenderer) {
-        if (sExecutor == null) {
+        this(ibRenderer, ibRenderer.isAnimated() ? new Timeline(ibRenderer) : null);
+    }
+
+    /**
+     * Create a drawable to show the timeline.
+     * The timeline might be shown by other drawables.
+     */
+    public IBDrawable(@NonNull Timeline timeline) {
+        this(timeline.getRenderer(), timeline);
+    }
+
+    private IBDrawable(@NonNull IBRenderer ibRenderer, @Nullable Timeline timeline) {
+        if (!FrameScheduler.isInit()) {
             throw new IllegalStateException("Please init Gukize first.");
         }
         mIBRenderer = ibRenderer;
         mPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
-        if (ibRenderer.isAnimated()) {
-            mTask = new Task();
-            mTask.executeOnExecutor(sExecutor);
-        } else {
-            mTask = null;
+        mTimeline = timeline;
+        if (timeline != null) {
+            timeline.addDrawable(this);
         }
     }
 
     public void recycle() {
-        if (mTask == null) {
+        if (mRecycled) {
+            return;
+        }
+        mRecycled = true;
+
+        if (mTimeline == null) {
             mIBRenderer.recycle();
         } else {
-            mTask.addTask(Task.RECYCLE);
+            mRunning = false;
+            mTimeline.removeDrawable(this);
         }
     }
 
@@ -95,17 +94,27 @@ class IBDrawable extends Drawable implements Animatable, Runnable {
         return mIBRenderer.isAnimated();
     }
 
+    /**
+     * Return the byte count of the shown bitmap.
+     */
+    public int getByteCount() {
+        final Bitmap bitmap = mIBRenderer.getBitmap();
+        return bitmap != null ? BitmapPool.getByteCount(bitmap) : 0;
+    }
+
     @Override
     public boolean setVisible(boolean visible, boolean restart) {
         final boolean changed = super.setVisible(visible, restart);
         if (mIBRenderer.isAnimated()) {
             if (visible) {
                 if (restart || changed) {
-                    final boolean next = !restart && mRunning;
+                    // Continue from the frame when hidden
+                    final boolean next = !restart && (mRunning || mRunningWhenHidden);
                     setFrame(next, mAnimating);
                 }
             } else {
-                unscheduleSelf(this);
+                mRunningWhenHidden = mRunning;
+                unscheduleFrame();
             }
         }
         return changed;
@@ -126,7 +135,7 @@ class IBDrawable extends Drawable implements Animatable, Runnable {
         mAnimating = false;
 
         if (mIBRenderer.isAnimated() && isRunning()) {
-            unscheduleSelf(this);
+            unscheduleFrame();
         }
     }
 
@@ -135,34 +144,32 @@ class IBDrawable extends Drawable implements Animatable, Runnable {
         return mRunning;
     }
 
-    @Override
-    public void run() {
-        setFrame(true, true);
-    }
-
     // resetOrNext, false for reset, true for next
     private void setFrame(boolean resetOrNext, boolean animate) {
         // Check recycled
-        if (mTask == null || mTask.isRecycled() || mIBRenderer.isRecycled()) {
+        if (mTimeline == null || mRecycled) {
             return;
         }
 
         mAnimating = animate;
-        unscheduleSelf(this);
-        if (animate) {
-            mRunning = true;
-        }
+        mRunning = animate;
 
-        // Add task
-        final int task = resetOrNext ? (animate ? Task.ADVANCE_ANIMATE : Task.ADVANCE) :
-                (animate ? Task.RESET_ANIMATE : Task.RESET);
-        mTask.addTask(task);
+        mTimeline.setFrame(this, resetOrNext, animate);
     }
 
-    @Override
-    public void unscheduleSelf(@NonNull Runnable what) {
+    private void unscheduleFrame() {
         mRunning = false;
-        super.unscheduleSelf(what);
+        if (mTimeline != null && !mRecycled) {
+            mTimeline.onDrawableStop();
+        }
+    }
+
+    @Override
+    protected void onBoundsChange(Rect bounds) {
+        super.onBoundsChange(bounds);
+        if (mTimeline != null && !mRecycled) {
+            mTimeline.onBoundsChange();
+        }
     }
 
     @Override
@@ -197,98 +204,4 @@ class IBDrawable extends Drawable implements Animatable, Runnable {
     public int getIntrinsicHeight() {
         return mIBRenderer.getHeight();
     }
-
-    // Task keeps till recycled
-    private class Task extends AsyncTask<Void, Long, Void> {
-
-        private static final int RESET = 0;
-        private static final int RESET_ANIMATE = 1;
-        private static final int ADVANCE = 2;
-        private static final int ADVANCE_ANIMATE = 3;
-        private static final int RECYCLE = 4;
-
-        private boolean mRecycled;
-        private final Deque<Integer> mTaskStack = new LinkedList<>();
-        private final Deque<Long> mTimeStack = new LinkedList<>();
-        private final Object mLock = new Object();
-
-        public void addTask(int task) {
-            if (mRecycled) {
-                return;
-            }
-
-            synchronized (mLock) {
-                if (task == RECYCLE) {
-                    mTaskStack.clear();
-                    mRecycled = true;
-                }
-                mTaskStack.addLast(task);
-                mTimeStack.addLast(SystemClock.uptimeMillis());
-                mLock.notify();
-            }
-        }
-
-        public boolean isRecycled() {
-            return mRecycled;
-        }
-
-        @Override
-        protected Void doInBackground(Void... params) {
-            for (;;) {
-                final Integer task;
-                final Long time;
-                synchronized (mLock) {
-                    task = mTaskStack.pollFirst();
-                    time = mTimeStack.pollFirst();
-                    if (task == null) {
-                        try {
-                            mLock.wait();
-                        } catch (InterruptedException e) {
-                            // Ignore
-                        }
-                        continue;
-                    }
-                }
-
-                switch (task) {
-                    case RESET:
-                        mIBRenderer.reset();
-                        publishProgress((Long) null);
-                        break;
-                    case RESET_ANIMATE:
-                        mIBRenderer.reset();
-                        publishProgress(time);
-                        break;
-                    case ADVANCE:
-                        mIBRenderer.advance();
-                        publishProgress((Long) null);
-                        break;
-                    case ADVANCE_ANIMATE:
-                        mIBRenderer.advance();
-                        publishProgress(time);
-                        break;
-                    case RECYCLE:
-                        // mIBRenderer will be recycled in onPostExecute(),
-                        // just return now.
-                        return null;
-                    default:
-                        throw new IllegalStateException("Invalid task: " + task);
-                }
-            }
-        }
-
-        @Override
-        protected void onProgressUpdate(Long... values) {
-            invalidateSelf();
-            final Long time = values[0];
-            if (time != null) {
-                scheduleSelf(IBDrawable.this, time + mIBRenderer.getCurrentDelay());
-            }
-        }
-
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            mIBRenderer.recycle();
-        }
-    }
 }
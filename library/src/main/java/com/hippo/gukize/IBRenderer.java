@@ -32,10 +32,38 @@ abstract class IBRenderer {
 
     @Nullable
     private IBData mData;
+    // Whether it holds a reference of mData
+    private boolean mAttached;
 
     protected IBRenderer(@NonNull IBData data) {
+        this(data, true);
+    }
+
+    /**
+     * Create a IBRenderer. If not attached, it doesn't reference
+     * the IBData until {@link #attach()}, so it can be kept by the IBData.
+     */
+    protected IBRenderer(@NonNull IBData data, boolean attach) {
         mData = data;
-        data.addReference();
+        if (attach) {
+            data.addReference(this);
+            mAttached = true;
+        }
+    }
+
+    /**
+     * Start referencing the IBData.
+     * Return false if the IBData or the IBRenderer is recycled.
+     */
+    boolean attach() {
+        if (mAttached) {
+            return true;
+        }
+        if (mData == null || !mData.tryAddReference(this)) {
+            return false;
+        }
+        mAttached = true;
+        return true;
     }
 
     /**
@@ -44,7 +72,10 @@ abstract class IBRenderer {
     @CallSuper
     protected void recycle() {
         if (mData != null) {
-            mData.removeReference();
+            if (mAttached) {
+                mData.removeReference(this);
+                mAttached = false;
+            }
             mData = null;
         }
     }
@@ -100,6 +131,53 @@ abstract class IBRenderer {
      */
     public abstract void advance();
 
+    /**
+     * Set current frame to next without rendering it.
+     * The frame prepared by {@link #prepareNext()} is dropped.
+     * Return the delay of the new current frame.
+     * Call {@link #render()} to render the last one.
+     * It is safe to call it if the IBRenderer is recycled
+     * and return {@link Integer#MAX_VALUE}.
+     */
+    public abstract int skip();
+
+    /**
+     * Render current frame after {@link #skip()}.
+     * It is safe to call it if the IBRenderer is recycled
+     * and nothing will happen.
+     */
+    public abstract void render();
+
+    /**
+     * Render next frame to back buffer before it is due.
+     * It is safe to call it if the IBRenderer is recycled
+     * or has no back buffer, and nothing will happen.
+     */
+    public abstract void prepareNext();
+
+    /**
+     * Swap back buffer to front, show the frame
+     * rendered by {@link #reset()}, {@link #advance()}
+     * or {@link #prepareNext()}. Return false if
+     * the IBRenderer has no back buffer or no
+     * frame is ready.
+     */
+    public abstract boolean swap();
+
+    /**
+     * Render frames with the sample, the bitmap becomes
+     * {@code 1 / sample} of the size. Current frame is
+     * rendered again. Must be called in worker thread.
+     * It is safe to call it if the IBRenderer is recycled
+     * and nothing will happen.
+     */
+    public abstract void setSample(int sample);
+
+    /**
+     * Return the sample of the bitmap.
+     */
+    public abstract int getSample();
+
     /**
      * Return a bitmap to render.
      * It is safe to call it if the IBRenderer is recycled
@@ -27,19 +27,69 @@ import com.hippo.image.ImageData;
 
 class IData extends IBData {
 
+    private static boolean sShareTimeline;
+
+    static void init(boolean shareTimeline) {
+        sShareTimeline = shareTimeline;
+    }
+
     @Nullable
     private ImageData mImageData;
+    // The timeline shared by all drawables of this IData
+    @Nullable
+    private Timeline mTimeline;
+    // The changed rect of each frame, see GifDirtyRects
+    @Nullable
+    private int[] mDirtyRects;
+    // The renderer with first frame rendered, not referencing this IData.
+    // Guarded by this.
+    @Nullable
+    private IRenderer mPreparedRenderer;
+    // The bitmap byte count of the prepared renderer. It is kept after the
+    // renderer is taken, so caches always see the same byte count.
+    private int mPreparedByteCount;
 
     public IData(@NonNull ImageData imageData) {
         mImageData = imageData;
         imageData.addReference();
     }
 
+    /**
+     * Set the changed rect of each frame, from {@link GifDirtyRects}.
+     * Must be called before creating renderers.
+     */
+    void setDirtyRects(@Nullable int[] dirtyRects) {
+        mDirtyRects = dirtyRects;
+    }
+
+    /**
+     * Create a renderer at the sample and render the first frame, in decode
+     * thread. The first drawable takes it, and shows the first frame at once.
+     * Must be called before the IData is cached.
+     */
+    void prepareRenderer(int sample) {
+        final ImageData imageData = mImageData;
+        if (imageData == null) {
+            return;
+        }
+        final IRenderer renderer = new IRenderer(this, imageData.createImageRenderer(),
+                mDirtyRects, sample, false);
+        renderer.prepare();
+        synchronized (this) {
+            mPreparedRenderer = renderer;
+            mPreparedByteCount = renderer.getBitmapByteCount();
+        }
+    }
+
     @Override
-    public void recycle() {
-        // Check referenced
-        if (isReferenced()) {
-            throw new IllegalStateException("Can't recycle a referenced IBData.");
+    protected void onRecycleData() {
+        final IRenderer preparedRenderer;
+        synchronized (this) {
+            preparedRenderer = mPreparedRenderer;
+            mPreparedRenderer = null;
+        }
+        if (preparedRenderer != null) {
+            preparedRenderer.recycle();
         }
         if (mImageData != null) {
             mImageData.removeReference();
@@ -52,18 +102,19 @@ class IData extends IBData {
         }
     }
 
-    @Override
-    public boolean isRecycled() {
-        return mImageData == null;
-    }
-
     @Override
     public int getByteCount() {
         // Check recycled
         if (mImageData == null) {
             throw new IllegalStateException("Can't get byte count from a recycled IData.");
         }
-        return mImageData.getByteCount();
+        synchronized (this) {
+            return mImageData.getByteCount() + mPreparedByteCount;
+        }
+    }
+
+    int getFrameCount() {
+        return mImageData != null ? mImageData.getFrameCount() : 0;
     }
 
     @NonNull
@@ -73,6 +124,30 @@ class IData extends IBData {
         if (mImageData == null) {
             throw new IllegalStateException("Can't get byte count from a recycled IData.");
         }
-        return new IRenderer(this, mImageData.createImageRenderer());
+        final IRenderer preparedRenderer;
+        synchronized (this) {
+            preparedRenderer = mPreparedRenderer;
+            mPreparedRenderer = null;
+        }
+        if (preparedRenderer != null) {
+            if (preparedRenderer.attach()) {
+                return preparedRenderer;
+            }
+            preparedRenderer.recycle();
+        }
+        return new IRenderer(this, mImageData.createImageRenderer(), mDirtyRects, 1, true);
+    }
+
+    @NonNull
+    @Override
+    public IBDrawable createDrawable() {
+        if (!sShareTimeline) {
+            return super.createDrawable();
+        }
+        // The timeline is recycled after the last drawable leaves
+        if (mTimeline == null || mTimeline.isRecycled()) {
+            mTimeline = new Timeline(createRenderer());
+        }
+        return new IBDrawable(mTimeline);
     }
 }
@@ -21,6 +21,9 @@ package com.hippo.gukize;
  */
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
@@ -28,41 +31,204 @@ import android.util.Log;
 import com.hippo.image.ImageData;
 import com.hippo.image.ImageRenderer;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * IRenderer renders frames of an animated image.
+ * <p>
+ * If all frames fit the frame cache budget, each frame is rendered
+ * to its own bitmap once, and later loops only swap the bitmap to draw.
+ * Otherwise frames are decoded again in every loop.
+ * <p>
+ * If the changed rect of each frame is known, only the changed rect
+ * is rendered in single buffer, and only it is invalidated.
+ */
 class IRenderer extends IBRenderer {
 
     private static final String LOG_TAG = IRenderer.class.getSimpleName();
 
+    private static boolean sDoubleBuffer;
+    private static int sFrameCacheMaxSize;
+    private static int sFrameCacheTotalSize;
+    // The byte count of all frame caches
+    private static final AtomicInteger sFrameCacheSize = new AtomicInteger();
+
+    static void init(boolean doubleBuffer, int frameCacheMaxSize, int frameCacheTotalSize) {
+        sDoubleBuffer = doubleBuffer;
+        sFrameCacheMaxSize = frameCacheMaxSize;
+        sFrameCacheTotalSize = frameCacheTotalSize;
+    }
+
     private final int mWidth;
     private final int mHeight;
     private final boolean mOpaque;
+    private final boolean mDoubleBuffer;
+    private final Bitmap.Config mConfig;
+    private final int mFrameCount;
+    // Only touched in worker thread
+    private int mSample = 1;
+    // The frame index of mImageRenderer, only touched in worker thread
+    private int mRendererIndex;
+    // All frames rendered once, null for decoding in every loop
+    @Nullable
+    private volatile FrameCache mFrameCache;
 
     @Nullable
     private ImageRenderer mImageRenderer;
+    // The bitmap to draw
+    @Nullable
+    private volatile Bitmap mBitmap;
+    // The bitmap to render next frame, only for double buffer
     @Nullable
-    private Bitmap mBitmap;
+    private Bitmap mBackBitmap;
+    // The delay of the frame in mBitmap, only for double buffer or frame cache
+    private volatile int mDelay = Integer.MAX_VALUE;
+    // The delay of the frame in mBackBitmap, only for double buffer
+    private int mBackDelay = Integer.MAX_VALUE;
+    // Whether mBackBitmap holds a frame to swap
+    private boolean mBackReady;
+    // Whether skip() stops at the frame in mBackBitmap, only touched in worker thread
+    private boolean mBackSkipped;
+    // The changed rect of each frame, null for unknown
+    @Nullable
+    private final int[] mDirtyRects;
+    // The rect not rendered to mBitmap yet, only for single buffer.
+    // Only touched in worker thread.
+    private final Rect mRenderDirty = new Rect();
+    // Whether the first frame is rendered by prepare()
+    private boolean mPrepared;
+    private final Object mLock = new Object();
 
-    public IRenderer(@NonNull IBData data, @NonNull ImageRenderer imageRenderer) {
-        super(data);
+    public IRenderer(@NonNull IBData data, @NonNull ImageRenderer imageRenderer,
+            @Nullable int[] dirtyRects, int sample, boolean attach) {
+        super(data, attach);
         final ImageData imageData = imageRenderer.getImageData();
         mWidth = imageData.getWidth();
         mHeight = imageData.getHeight();
         mOpaque = imageData.isOpaque();
+        mDoubleBuffer = sDoubleBuffer;
         mImageRenderer = imageRenderer;
+        mConfig = imageData.isOpaque() ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        mFrameCount = imageData.getFrameCount();
+        mDirtyRects = dirtyRects != null && dirtyRects.length == mFrameCount * 4 ? dirtyRects : null;
+        mSample = sample;
         try {
-            mBitmap = Bitmap.createBitmap(imageData.getWidth(), imageData.getHeight(),
-                    imageData.isOpaque() ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+            mFrameCache = createFrameCache(sample);
+            if (mFrameCache != null) {
+                // The first frame is rendered in reset()
+                mBitmap = mFrameCache.allocate(0);
+            } else {
+                final int width = Math.max(1, mWidth / sample);
+                final int height = Math.max(1, mHeight / sample);
+                mBitmap = BitmapPool.create(width, height, mConfig);
+                if (mDoubleBuffer) {
+                    mBackBitmap = BitmapPool.create(width, height, mConfig);
+                }
+            }
         } catch (OutOfMemoryError e) {
             Log.d(LOG_TAG, "Can't create Bitmap, out of memory.");
             recycle();
         }
     }
 
+    // Return a frame cache for the sample, null if out of budget
+    @Nullable
+    private FrameCache createFrameCache(int sample) {
+        if (sFrameCacheMaxSize <= 0 || mFrameCount <= 1) {
+            return null;
+        }
+        final int frameWidth = Math.max(1, mWidth / sample);
+        final int frameHeight = Math.max(1, mHeight / sample);
+        final long byteCount = (long) frameWidth * frameHeight *
+                (mConfig == Bitmap.Config.RGB_565 ? 2 : 4) * mFrameCount;
+        if (byteCount > sFrameCacheMaxSize) {
+            return null;
+        }
+        // Reserve it in total budget
+        for (;;) {
+            final int size = sFrameCacheSize.get();
+            if (size + byteCount > sFrameCacheTotalSize) {
+                return null;
+            }
+            if (sFrameCacheSize.compareAndSet(size, size + (int) byteCount)) {
+                return new FrameCache(frameWidth, frameHeight, (int) byteCount);
+            }
+        }
+    }
+
+    /**
+     * Render the first frame to the bitmap to draw, so
+     * it can be shown at once. The next {@link #reset()} does nothing.
+     * It can be called in any thread before the IRenderer is shared.
+     */
+    void prepare() {
+        reset();
+        swap();
+        mPrepared = true;
+    }
+
+    // Move to next frame index of mImageRenderer
+    private void advanceRenderer(@NonNull ImageRenderer imageRenderer) {
+        imageRenderer.advance();
+        mRendererIndex = (mRendererIndex + 1) % Math.max(1, mFrameCount);
+    }
+
+    // The frame changes the rect. Index -1 for the whole frame.
+    private void addDirty(int index) {
+        final int[] rects = mDirtyRects;
+        final Rect rect = mRenderDirty;
+        if (index < 0 || rects == null) {
+            rect.union(0, 0, mWidth, mHeight);
+        } else {
+            final int i = index * 4;
+            rect.union(rects[i], rects[i + 1], rects[i + 2], rects[i + 3]);
+        }
+        if (mDoubleBuffer || mFrameCache != null) {
+            // Whole frames are rendered
+            rect.setEmpty();
+        }
+    }
+
+    // The bitmap is replaced, nothing left to render to it
+    private void markReplaced() {
+        mRenderDirty.setEmpty();
+    }
+
+    // Render the changed rect of current frame to mBitmap, only for single buffer
+    private void renderDirty(@NonNull ImageRenderer imageRenderer, @NonNull Bitmap bitmap) {
+        final Rect rect = mRenderDirty;
+        if (rect.isEmpty()) {
+            return;
+        }
+        // Align to sample
+        final int sample = mSample;
+        final int left = rect.left / sample * sample;
+        final int top = rect.top / sample * sample;
+        final int right = Math.min(mWidth, (rect.right + sample - 1) / sample * sample);
+        final int bottom = Math.min(mHeight, (rect.bottom + sample - 1) / sample * sample);
+        imageRenderer.render(bitmap, left / sample, top / sample, left, top,
+                right - left, bottom - top, sample, false, 0);
+        rect.setEmpty();
+    }
+
     @Override
     public void recycle() {
+        if (mFrameCache != null) {
+            // mBitmap is one of the frames
+            mFrameCache.recycle();
+            mFrameCache = null;
+            mBitmap = null;
+        }
+        // Reuse bitmaps
         if (mBitmap != null) {
-            mBitmap.recycle();
+            BitmapPool.put(mBitmap);
             mBitmap = null;
         }
+        if (mBackBitmap != null) {
+            BitmapPool.put(mBackBitmap);
+            mBackBitmap = null;
+        }
         if (mImageRenderer != null) {
             mImageRenderer.recycle();
             mImageRenderer = null;
@@ -92,7 +258,9 @@ class IRenderer extends IBRenderer {
 
     @Override
     public int getCurrentDelay() {
-        if (mImageRenderer != null) {
+        if (mDoubleBuffer || mFrameCache != null) {
+            return mDelay;
+        } else if (mImageRenderer != null) {
             return mImageRenderer.getCurrentDelay();
         } else {
             return Integer.MAX_VALUE;
@@ -101,17 +269,319 @@ class IRenderer extends IBRenderer {
 
     @Override
     public void reset() {
-        if (mBitmap != null && mImageRenderer != null) {
+        final Bitmap bitmap = mBitmap;
+        if (mPrepared) {
+            // The first frame is in mBitmap
+            mPrepared = false;
+            markReplaced();
+            return;
+        }
+        if (bitmap != null && mImageRenderer != null) {
+            addDirty(-1);
+            if (mFrameCache != null) {
+                mFrameCache.show(0);
+                return;
+            }
             mImageRenderer.reset();
-            mImageRenderer.render(mBitmap, 0, 0, 0, 0, mWidth, mHeight, 1, false, 0);
+            mRendererIndex = 0;
+            if (mDoubleBuffer) {
+                renderBack();
+            } else {
+                renderDirty(mImageRenderer, bitmap);
+            }
         }
     }
 
     @Override
     public void advance() {
-        if (mBitmap != null && mImageRenderer != null) {
-            mImageRenderer.advance();
-            mImageRenderer.render(mBitmap, 0, 0, 0, 0, mWidth, mHeight, 1, false, 0);
+        mPrepared = false;
+        final Bitmap bitmap = mBitmap;
+        if (bitmap != null && mImageRenderer != null) {
+            if (mFrameCache != null) {
+                final int index = (mFrameCache.mIndex + 1) % mFrameCount;
+                addDirty(index);
+                mFrameCache.show(index);
+            } else if (mDoubleBuffer) {
+                // The next frame might be prepared
+                synchronized (mLock) {
+                    if (mBackReady) {
+                        return;
+                    }
+                }
+                advanceRenderer(mImageRenderer);
+                addDirty(mRendererIndex);
+                renderBack();
+            } else {
+                advanceRenderer(mImageRenderer);
+                addDirty(mRendererIndex);
+                renderDirty(mImageRenderer, bitmap);
+            }
+        }
+    }
+
+    @Override
+    public int skip() {
+        mPrepared = false;
+        final ImageRenderer imageRenderer = mImageRenderer;
+        if (mBitmap == null || imageRenderer == null) {
+            return Integer.MAX_VALUE;
+        }
+        if (mFrameCache != null) {
+            // Only move the index, the frame is shown in render()
+            final FrameCache frameCache = mFrameCache;
+            frameCache.mIndex = (frameCache.mIndex + 1) % mFrameCount;
+            addDirty(frameCache.mIndex);
+            return frameCache.getDelay(frameCache.mIndex);
+        }
+        if (mDoubleBuffer) {
+            synchronized (mLock) {
+                // ImageRenderer is already at the prepared frame
+                if (mBackReady) {
+                    mBackReady = false;
+                    mBackSkipped = true;
+                    return mBackDelay;
+                }
+            }
+        }
+        mBackSkipped = false;
+        // Only composite it in ImageRenderer
+        advanceRenderer(imageRenderer);
+        addDirty(mRendererIndex);
+        return imageRenderer.getCurrentDelay();
+    }
+
+    @Override
+    public void render() {
+        final Bitmap bitmap = mBitmap;
+        if (bitmap != null && mImageRenderer != null) {
+            if (mFrameCache != null) {
+                mFrameCache.show(mFrameCache.mIndex);
+            } else if (mDoubleBuffer) {
+                if (mBackSkipped) {
+                    // The frame is still in back buffer
+                    mBackSkipped = false;
+                    synchronized (mLock) {
+                        mBackReady = true;
+                    }
+                } else {
+                    renderBack();
+                }
+            } else {
+                renderDirty(mImageRenderer, bitmap);
+            }
+        }
+    }
+
+    @Override
+    public void prepareNext() {
+        if (mDoubleBuffer && mFrameCache == null && mImageRenderer != null) {
+            synchronized (mLock) {
+                if (mBackReady) {
+                    return;
+                }
+            }
+            advanceRenderer(mImageRenderer);
+            addDirty(mRendererIndex);
+            renderBack();
+        }
+    }
+
+    // Render current frame of mImageRenderer to mBackBitmap.
+    // The back bitmap is never swapped while rendering.
+    private void renderBack() {
+        final ImageRenderer imageRenderer = mImageRenderer;
+        final Bitmap backBitmap;
+        synchronized (mLock) {
+            mBackReady = false;
+            backBitmap = mBackBitmap;
+        }
+        if (imageRenderer == null || backBitmap == null) {
+            return;
+        }
+        imageRenderer.render(backBitmap, 0, 0, 0, 0, mWidth, mHeight, mSample, false, 0);
+        synchronized (mLock) {
+            mBackDelay = imageRenderer.getCurrentDelay();
+            mBackReady = true;
+        }
+    }
+
+    @Override
+    public boolean swap() {
+        // Frame cache shows the frame at once
+        if (!mDoubleBuffer || mFrameCache != null) {
+            return false;
+        }
+        synchronized (mLock) {
+            if (!mBackReady || mBitmap == null || mBackBitmap == null) {
+                return false;
+            }
+            final Bitmap temp = mBitmap;
+            mBitmap = mBackBitmap;
+            mBackBitmap = temp;
+            mDelay = mBackDelay;
+            mBackReady = false;
+            return true;
+        }
+    }
+
+    @Override
+    public int getSample() {
+        return mSample;
+    }
+
+    /**
+     * Return the byte count of the bitmaps out of the frame cache,
+     * the frame cache has its own budget.
+     */
+    int getBitmapByteCount() {
+        synchronized (mLock) {
+            if (mFrameCache != null) {
+                return 0;
+            }
+            int count = 0;
+            if (mBitmap != null) {
+                count += BitmapPool.getByteCount(mBitmap);
+            }
+            if (mBackBitmap != null) {
+                count += BitmapPool.getByteCount(mBackBitmap);
+            }
+            return count;
+        }
+    }
+
+    @Override
+    public void setSample(int sample) {
+        final ImageRenderer imageRenderer = mImageRenderer;
+        final Bitmap oldBitmap = mBitmap;
+        if (sample == mSample || imageRenderer == null || oldBitmap == null) {
+            return;
+        }
+        mPrepared = false;
+
+        // The frame index on screen
+        final int index;
+        final FrameCache oldFrameCache = mFrameCache;
+        if (oldFrameCache != null) {
+            index = oldFrameCache.mIndex;
+        } else if (mDoubleBuffer && mBackReady) {
+            index = (mRendererIndex - 1 + mFrameCount) % Math.max(1, mFrameCount);
+        } else {
+            index = mRendererIndex;
+        }
+
+        final FrameCache frameCache;
+        try {
+            frameCache = createFrameCache(sample);
+        } catch (OutOfMemoryError e) {
+            Log.d(LOG_TAG, "Can't create frame cache, out of memory.");
+            return;
+        }
+        if (frameCache != null) {
+            if (oldFrameCache != null) {
+                frameCache.mDelays = oldFrameCache.mDelays;
+            }
+            final int oldSample = mSample;
+            mSample = sample;
+            mFrameCache = frameCache;
+            frameCache.show(index);
+            if (mBitmap == oldBitmap) {
+                // Out of memory, keep the old one
+                mSample = oldSample;
+                mFrameCache = oldFrameCache;
+                frameCache.recycle();
+                return;
+            }
+            releaseOld(oldFrameCache, oldBitmap, mBackBitmap);
+            mBackBitmap = null;
+            mBackReady = false;
+            markReplaced();
+            return;
+        }
+
+        final int width = Math.max(1, mWidth / sample);
+        final int height = Math.max(1, mHeight / sample);
+        final Bitmap bitmap;
+        final Bitmap backBitmap;
+        try {
+            bitmap = BitmapPool.create(width, height, mConfig);
+            backBitmap = mDoubleBuffer ? BitmapPool.create(width, height, mConfig) : null;
+        } catch (OutOfMemoryError e) {
+            Log.d(LOG_TAG, "Can't create Bitmap, out of memory.");
+            return;
+        }
+        mSample = sample;
+
+        if (oldFrameCache != null) {
+            // Out of budget, back to decoding in every loop
+            mFrameCache = null;
+            seekRenderer(index);
+            imageRenderer.render(bitmap, 0, 0, 0, 0, mWidth, mHeight, sample, false, 0);
+            synchronized (mLock) {
+                mDelay = imageRenderer.getCurrentDelay();
+                mBitmap = bitmap;
+                mBackBitmap = backBitmap;
+                mBackReady = false;
+            }
+            releaseOld(oldFrameCache, null, null);
+            markReplaced();
+            return;
+        }
+
+        final Bitmap oldBackBitmap;
+        synchronized (mLock) {
+            if (mDoubleBuffer && mBackReady) {
+                // ImageRenderer is at next frame, scale current frame
+                final Canvas canvas = new Canvas(bitmap);
+                canvas.drawBitmap(oldBitmap, null, new Rect(0, 0, width, height),
+                        new Paint(Paint.FILTER_BITMAP_FLAG));
+                imageRenderer.render(backBitmap, 0, 0, 0, 0, mWidth, mHeight, sample, false, 0);
+            } else {
+                imageRenderer.render(bitmap, 0, 0, 0, 0, mWidth, mHeight, sample, false, 0);
+            }
+            oldBackBitmap = mBackBitmap;
+            mBitmap = bitmap;
+            mBackBitmap = backBitmap;
+        }
+
+        releaseOld(null, oldBitmap, oldBackBitmap);
+        markReplaced();
+    }
+
+    // The old bitmaps might be drawing now, reuse them in main thread
+    private static void releaseOld(@Nullable final FrameCache frameCache,
+            @Nullable final Bitmap bitmap, @Nullable final Bitmap backBitmap) {
+        if (frameCache != null) {
+            // Release the budget at once
+            frameCache.releaseBudget();
+        }
+        FrameScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (frameCache != null) {
+                    frameCache.recycle();
+                } else if (bitmap != null) {
+                    BitmapPool.put(bitmap);
+                }
+                if (backBitmap != null) {
+                    BitmapPool.put(backBitmap);
+                }
+            }
+        });
+    }
+
+    // Move mImageRenderer to the frame index.
+    // Frames are composited in order, so it might start over.
+    private void seekRenderer(int index) {
+        final ImageRenderer imageRenderer = mImageRenderer;
+        if (imageRenderer == null) {
+            return;
+        }
+        if (index < mRendererIndex) {
+            imageRenderer.reset();
+            mRendererIndex = 0;
+        }
+        while (mRendererIndex < index) {
+            advanceRenderer(imageRenderer);
         }
     }
 
@@ -120,4 +590,98 @@ class IRenderer extends IBRenderer {
     public Bitmap getBitmap() {
         return mBitmap;
     }
+
+    /*
+     * Bitmaps of all frames. A rendered frame is never changed,
+     * so showing a frame only swaps mBitmap.
+     */
+    private class FrameCache {
+
+        private final int mFrameWidth;
+        private final int mFrameHeight;
+        private final int mByteCount;
+        private final Bitmap[] mFrames;
+        private final boolean[] mRendered;
+        // -1 for unknown delay
+        private int[] mDelays;
+        private boolean mBudgetReleased;
+        // The frame index to show, only touched in worker thread
+        private int mIndex;
+
+        private FrameCache(int frameWidth, int frameHeight, int byteCount) {
+            mFrameWidth = frameWidth;
+            mFrameHeight = frameHeight;
+            mByteCount = byteCount;
+            mFrames = new Bitmap[mFrameCount];
+            mRendered = new boolean[mFrameCount];
+            mDelays = new int[mFrameCount];
+            Arrays.fill(mDelays, -1);
+        }
+
+        // Return the bitmap for the frame, not rendered yet
+        @NonNull
+        private Bitmap allocate(int index) {
+            Bitmap bitmap = mFrames[index];
+            if (bitmap == null) {
+                bitmap = BitmapPool.create(mFrameWidth, mFrameHeight, mConfig);
+                mFrames[index] = bitmap;
+            }
+            return bitmap;
+        }
+
+        private int getDelay(int index) {
+            if (mDelays[index] < 0) {
+                final ImageRenderer imageRenderer = mImageRenderer;
+                if (imageRenderer == null) {
+                    return Integer.MAX_VALUE;
+                }
+                seekRenderer(index);
+                mDelays[index] = imageRenderer.getCurrentDelay();
+            }
+            return mDelays[index];
+        }
+
+        // Render the frame if it is not cached, and draw it.
+        // mBitmap is not changed if out of memory.
+        private void show(int index) {
+            final ImageRenderer imageRenderer = mImageRenderer;
+            if (imageRenderer == null) {
+                return;
+            }
+            index %= mFrameCount;
+            mIndex = index;
+            if (!mRendered[index]) {
+                final Bitmap bitmap;
+                try {
+                    bitmap = allocate(index);
+                } catch (OutOfMemoryError e) {
+                    Log.d(LOG_TAG, "Can't create Bitmap, out of memory.");
+                    return;
+                }
+                seekRenderer(index);
+                imageRenderer.render(bitmap, 0, 0, 0, 0, mWidth, mHeight, mSample, false, 0);
+                mDelays[index] = imageRenderer.getCurrentDelay();
+                mRendered[index] = true;
+            }
+            mBitmap = mFrames[index];
+            mDelay = mDelays[index];
+        }
+
+        private void releaseBudget() {
+            if (!mBudgetReleased) {
+                mBudgetReleased = true;
+                sFrameCacheSize.addAndGet(-mByteCount);
+            }
+        }
+
+        private void recycle() {
+            releaseBudget();
+            for (int i = 0; i < mFrames.length; i++) {
+                if (mFrames[i] != null) {
+                    BitmapPool.put(mFrames[i]);
+                    mFrames[i] = null;
+                }
+            }
+        }
+    }
 }
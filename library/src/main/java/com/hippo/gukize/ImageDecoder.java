@@ -0,0 +1,414 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.hippo.image.BitmapDecoder;
+import com.hippo.image.Image;
+import com.hippo.image.ImageData;
+import com.hippo.image.ImageInfo;
+import com.hippo.image.ImageRenderer;
+import com.hippo.streampipe.InputStreamPipe;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decode {@link InputStreamPipe} to {@link IBData}.
+ */
+final class ImageDecoder {
+    private ImageDecoder() {}
+
+    private static final String LOG_TAG = ImageDecoder.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    // Max bytes to read for format and size
+    private static final int HEADER_LIMIT = 64 * 1024;
+
+    /**
+     * Return the largest power-of-two sample which keeps
+     * the sampled size not smaller than the target size.
+     * Return 1 if the target size is not positive.
+     */
+    static int computeSample(int width, int height, int targetWidth, int targetHeight) {
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return 1;
+        }
+        int sample = 1;
+        while (width / (sample * 2) >= targetWidth && height / (sample * 2) >= targetHeight) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    /**
+     * Decode the InputStreamPipe to IBData. Static image is subsampled
+     * to the target size by {@link #computeSample(int, int, int, int)}.
+     * Animated image is always decoded at full size. If the target size is
+     * set, its first frame is rendered at the sample for the first drawable.
+     * Return null if it is not a image or out of memory.
+     * <p>
+     * The pipe is opened only once for JPEG, PNG and GIF. The format and
+     * size are sniffed from a buffered prefix, then the same stream is
+     * decoded. Other formats fall back to reading image info first.
+     */
+    @Nullable
+    static IBData decode(@NonNull InputStreamPipe isPipe, int targetWidth, int targetHeight) {
+        try {
+            isPipe.obtain();
+
+            InputStream is = new BufferedInputStream(isPipe.open(), BUFFER_SIZE);
+            is.mark(HEADER_LIMIT);
+            final Header header = Header.read(is);
+            is.reset();
+
+            if (header.format == Header.FORMAT_UNKNOWN) {
+                isPipe.close();
+                return decodeWithInfo(isPipe, targetWidth, targetHeight);
+            }
+
+            final int sample = computeSample(header.width, header.height, targetWidth, targetHeight);
+            if (header.format == Header.FORMAT_GIF || header.animated) {
+                // Read the changed rect of each GIF frame while decoding
+                final GifDirtyRects dirtyRects = header.format == Header.FORMAT_GIF ?
+                        new GifDirtyRects() : null;
+                final IBData data = decodeImageData(dirtyRects != null ? dirtyRects.tee(is) : is, sample);
+                if (data instanceof IData) {
+                    if (dirtyRects != null) {
+                        ((IData) data).setDirtyRects(dirtyRects.getRects(((IData) data).getFrameCount()));
+                    }
+                    if (targetWidth > 0 && targetHeight > 0) {
+                        // Render the first frame here at the target size, not in main thread
+                        ((IData) data).prepareRenderer(sample);
+                    }
+                }
+                return data;
+            }
+
+            // Decode to a bitmap in pool
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                final Bitmap.Config config = header.opaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+                // Large enough for the decoder, it might round up
+                final Bitmap inBitmap = BitmapPool.get((header.width + sample - 1) / sample,
+                        (header.height + sample - 1) / sample, config);
+                if (inBitmap != null) {
+                    final Bitmap bitmap = decodeToBitmap(is, inBitmap, config, sample);
+                    if (bitmap != null) {
+                        return new BData(bitmap);
+                    }
+                    // The stream is consumed, open it again
+                    BitmapPool.put(inBitmap);
+                    isPipe.close();
+                    is = isPipe.open();
+                }
+            }
+
+            return decodeBitmap(is, sample);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            isPipe.close();
+            isPipe.release();
+        }
+    }
+
+    /**
+     * Return true if the pipe holds a image. Only the head is read.
+     */
+    static boolean isImage(@NonNull InputStreamPipe isPipe) {
+        try {
+            isPipe.obtain();
+            final Header header = Header.read(new BufferedInputStream(isPipe.open(), BUFFER_SIZE));
+            if (header.format != Header.FORMAT_UNKNOWN) {
+                return header.width > 0 && header.height > 0;
+            }
+            isPipe.close();
+            // Other formats
+            return BitmapDecoder.decode(isPipe.open(), new ImageInfo());
+        } catch (IOException e) {
+            return false;
+        } finally {
+            isPipe.close();
+            isPipe.release();
+        }
+    }
+
+    // Read image info first, then open the pipe again to decode.
+    // The pipe must be obtained. ImageDecoderBenchmark compares it with decode().
+    @Nullable
+    static IBData decodeWithInfo(@NonNull InputStreamPipe isPipe,
+            int targetWidth, int targetHeight) throws IOException {
+        // Get image info
+        final ImageInfo info = new ImageInfo();
+        if (!BitmapDecoder.decode(isPipe.open(), info)) {
+            Log.w(LOG_TAG, "This InputSteam is not a Image.");
+            return null;
+        }
+        isPipe.close();
+
+        final int sample = computeSample(info.width, info.height, targetWidth, targetHeight);
+        if (info.frameCount == 1) {
+            // It is a static image, use Bitmap
+            return decodeBitmap(isPipe.open(), sample);
+        } else {
+            // It may be a animated image
+            final IBData data = decodeImageData(isPipe.open(), sample);
+            if (data instanceof IData && targetWidth > 0 && targetHeight > 0) {
+                ((IData) data).prepareRenderer(sample);
+            }
+            return data;
+        }
+    }
+
+    @Nullable
+    private static IBData decodeBitmap(@NonNull InputStream is, int sample) {
+        final Bitmap bitmap = BitmapDecoder.decode(is, BitmapDecoder.CONFIG_AUTO, sample);
+        if (bitmap != null) {
+            return new BData(bitmap);
+        } else {
+            return null;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    @Nullable
+    private static Bitmap decodeToBitmap(@NonNull InputStream is, @NonNull Bitmap inBitmap,
+            @NonNull Bitmap.Config config, int sample) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inBitmap = inBitmap;
+        options.inMutable = true;
+        options.inPreferredConfig = config;
+        options.inSampleSize = sample;
+        try {
+            return BitmapFactory.decodeStream(is, null, options);
+        } catch (IllegalArgumentException e) {
+            // The bitmap can't be reused
+            return null;
+        }
+    }
+
+    @Nullable
+    private static IBData decodeImageData(@NonNull InputStream is, int sample) {
+        final ImageData imageData = Image.decode(is);
+        if (imageData != null) {
+            if (imageData.getFrameCount() == 1) {
+                // It is a static image, draw image to Bitmap
+                final int width = Math.max(1, imageData.getWidth() / sample);
+                final int height = Math.max(1, imageData.getHeight() / sample);
+                final Bitmap bitmap;
+                try {
+                    bitmap = BitmapPool.create(width, height,
+                            imageData.isOpaque() ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+                } catch (OutOfMemoryError e) {
+                    Log.d(LOG_TAG, "Can't create Bitmap, out of memory.");
+                    imageData.recycle();
+                    return null;
+                }
+
+                final ImageRenderer imageRenderer = imageData.createImageRenderer();
+                imageRenderer.render(bitmap, 0, 0, 0, 0, imageData.getWidth(), imageData.getHeight(), sample, false, 0);
+                imageRenderer.recycle();
+                imageData.recycle();
+
+                return new BData(bitmap);
+            } else {
+                // It is a animated
+                // Fix odd delay
+                imageData.setBrowserCompat(true);
+                return new IData(imageData);
+            }
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * The format and size of a image, read from the head of the stream.
+     */
+    static class Header {
+
+        static final int FORMAT_UNKNOWN = 0;
+        static final int FORMAT_JPEG = 1;
+        static final int FORMAT_PNG = 2;
+        static final int FORMAT_GIF = 3;
+
+        private static final int PNG_IHDR = 0x49484452;
+        private static final int PNG_IDAT = 0x49444154;
+        private static final int PNG_ACTL = 0x6163544c;
+        private static final int PNG_TRNS = 0x74524e53;
+
+        private final InputStream mIs;
+        private int mPosition;
+
+        int format = FORMAT_UNKNOWN;
+        int width;
+        int height;
+        // Only for JPEG and PNG
+        boolean opaque;
+        // Only for PNG, GIF is always checked by decoding
+        boolean animated;
+
+        private Header(InputStream is) {
+            mIs = is;
+        }
+
+        /**
+         * Read no more than {@link #HEADER_LIMIT} bytes.
+         * Format is {@link #FORMAT_UNKNOWN} if it can't tell.
+         */
+        @NonNull
+        static Header read(@NonNull InputStream is) throws IOException {
+            final Header header = new Header(is);
+            try {
+                header.readFormat();
+            } catch (EOFException e) {
+                header.format = FORMAT_UNKNOWN;
+            }
+            return header;
+        }
+
+        private void readFormat() throws IOException {
+            final int b0 = readByte();
+            final int b1 = readByte();
+            if (b0 == 0xFF && b1 == 0xD8) {
+                readJpeg();
+            } else if (b0 == 0x89 && b1 == 'P' && readByte() == 'N' && readByte() == 'G') {
+                readPng();
+            } else if (b0 == 'G' && b1 == 'I' && readByte() == 'F') {
+                readGif();
+            }
+        }
+
+        private void readJpeg() throws IOException {
+            for (;;) {
+                if (readByte() != 0xFF) {
+                    return;
+                }
+                int marker;
+                do {
+                    marker = readByte();
+                } while (marker == 0xFF);
+
+                // Markers without length
+                if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) {
+                    continue;
+                }
+                // No SOF before SOS or EOI
+                if (marker == 0xD9 || marker == 0xDA) {
+                    return;
+                }
+
+                final int length = readUInt16();
+                // SOF0 ~ SOF15, except DHT, JPG and DAC
+                if (marker >= 0xC0 && marker <= 0xCF &&
+                        marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                    skip(1); // Precision
+                    height = readUInt16();
+                    width = readUInt16();
+                    opaque = true;
+                    format = FORMAT_JPEG;
+                    return;
+                }
+                skip(length - 2);
+            }
+        }
+
+        private void readPng() throws IOException {
+            // The rest of signature
+            skip(4);
+            int length = readInt32();
+            if (readInt32() != PNG_IHDR) {
+                return;
+            }
+            width = readInt32();
+            height = readInt32();
+            skip(1); // Bit depth
+            final int colorType = readByte();
+            // Gray, RGB and palette have no alpha channel
+            opaque = colorType == 0 || colorType == 2 || colorType == 3;
+            skip(length - 10 + 4); // The rest of IHDR and CRC
+            // acTL and tRNS must be before the first IDAT
+            for (;;) {
+                length = readInt32();
+                final int type = readInt32();
+                if (type == PNG_ACTL) {
+                    animated = true;
+                } else if (type == PNG_TRNS) {
+                    opaque = false;
+                } else if (type == PNG_IDAT) {
+                    break;
+                }
+                skip(length + 4); // Data and CRC
+            }
+            format = FORMAT_PNG;
+        }
+
+        private void readGif() throws IOException {
+            // The rest of version
+            skip(3);
+            width = readByte() | (readByte() << 8);
+            height = readByte() | (readByte() << 8);
+            format = FORMAT_GIF;
+        }
+
+        private int readByte() throws IOException {
+            if (mPosition >= HEADER_LIMIT) {
+                throw new EOFException("Reach header limit");
+            }
+            final int b = mIs.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            ++mPosition;
+            return b;
+        }
+
+        private int readUInt16() throws IOException {
+            return (readByte() << 8) | readByte();
+        }
+
+        private int readInt32() throws IOException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        private void skip(long n) throws IOException {
+            if (n < 0 || mPosition + n > HEADER_LIMIT) {
+                throw new EOFException("Reach header limit");
+            }
+            while (n > 0) {
+                final long skipped = mIs.skip(n);
+                if (skipped <= 0) {
+                    // skip() might return 0 before the end
+                    readByte();
+                    --n;
+                } else {
+                    mPosition += skipped;
+                    n -= skipped;
+                }
+            }
+        }
+    }
+}
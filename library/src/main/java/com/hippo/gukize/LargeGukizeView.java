@@ -21,7 +21,10 @@ package com.hippo.gukize;
  */
 
 import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.view.ViewCompat;
 import android.util.AttributeSet;
 
@@ -34,7 +37,12 @@ import com.hippo.largeimageview.image.AutoSource2;
 import com.hippo.streampipe.InputStreamPipe;
 
 public class LargeGukizeView extends LargeImageView implements Unikery<IBData>,
-        LargeImageView.ImageInitListener {
+        LargeImageView.ImageInitListener, StreamingPipe.Listener {
+
+    // The preview is decoded to 1 / PREVIEW_RATIO of the view size
+    private static final int PREVIEW_RATIO = 4;
+    // The preview size if the view is not laid out
+    private static final int PREVIEW_SIZE = 256;
 
     private Conaco<IBData> mConaco;
     private int mId = Unikery.INVALID_ID;
@@ -45,6 +53,32 @@ public class LargeGukizeView extends LargeImageView implements Unikery<IBData>,
     private boolean mUseNetwork;
     private boolean mHasData;
     private boolean mFailOrCancel;
+    // Whether the image source is initialized
+    private boolean mImageReady;
+
+    private boolean mPreviewEnabled;
+    // The low resolution image shown before the image source is initialized
+    @Nullable
+    private IBDrawable mPreview;
+    // The preview is decoded from its own pipe while the image source is initializing
+    @Nullable
+    private SharedLoad mPreviewLoad;
+    private final Unikery<IBData> mPreviewUnikery = new PreviewUnikery();
+
+    // The image still downloading, see loadStream(String, String, StreamingPipe)
+    @Nullable
+    private StreamingPipe mStream;
+    private long mStreamReceivedSize;
+    @Nullable
+    private ProgressiveDecoder mProgressive;
+    private final ProgressiveDecoder.Callback mProgressiveCallback = new ProgressiveDecoder.Callback() {
+        @Override
+        public void onDecodePartial(@NonNull IBData value) {
+            if (!mImageReady) {
+                showPreview(value);
+            }
+        }
+    };
 
     private Listener mListener;
 
@@ -72,6 +106,121 @@ public class LargeGukizeView extends LargeImageView implements Unikery<IBData>,
         mListener = listener;
     }
 
+    /**
+     * Whether show a subsampled preview of the whole image before
+     * the image is ready. The preview is kept in memory cache,
+     * so it is shown at once if the image is loaded again. It also
+     * enables the partial image of {@link #loadStream(String, String, StreamingPipe)}.
+     */
+    public void setPreviewEnabled(boolean enabled) {
+        mPreviewEnabled = enabled;
+        if (!enabled) {
+            if (mProgressive != null) {
+                mProgressive.cancel();
+                mProgressive = null;
+            }
+            cancelPreview();
+        }
+    }
+
+    /**
+     * Return the memory cache key of the preview of the image.
+     */
+    @NonNull
+    static String getPreviewKey(@NonNull String key) {
+        return key + "@preview";
+    }
+
+    private void showPreview(@NonNull IBData value) {
+        // It might be recycled, for example evicted from memory cache at once
+        if (!value.tryAddReference(this)) {
+            return;
+        }
+        try {
+            releasePreview();
+            mPreview = value.createDrawable();
+            mPreview.setCallback(this);
+            updatePreviewBounds();
+            invalidate();
+        } finally {
+            value.removeReference(this);
+        }
+    }
+
+    // The image is in disk cache now, decode the preview from another pipe
+    private void loadPreview() {
+        final int width = getWidth() > 0 ? Math.max(1, getWidth() / PREVIEW_RATIO) : PREVIEW_SIZE;
+        final int height = getHeight() > 0 ? Math.max(1, getHeight() / PREVIEW_RATIO) : PREVIEW_SIZE;
+        final ConacoTask.Builder<IBData> builder = new ConacoTask.Builder<>();
+        builder.unikery = mPreviewUnikery;
+        builder.key = mKey;
+        builder.url = mUrl;
+        builder.dataContainer = mContainer;
+        builder.useNetwork = false;
+        builder.skipDecode = true;
+        mPreviewLoad = SharedLoad.load(mConaco, builder, getPreviewKey(mKey),
+                SizedLoader.getBucket(width), SizedLoader.getBucket(height), Gukize.PRIORITY_VISIBLE);
+    }
+
+    private void releasePreview() {
+        if (mPreview != null) {
+            mPreview.setCallback(null);
+            mPreview.recycle();
+            mPreview = null;
+            invalidate();
+        }
+    }
+
+    private void cancelPreview() {
+        if (mPreviewLoad != null) {
+            final SharedLoad load = mPreviewLoad;
+            mPreviewLoad = null;
+            load.unsubscribe(mPreviewUnikery);
+        }
+        releasePreview();
+    }
+
+    // Fit the preview in the content area
+    private void updatePreviewBounds() {
+        final Drawable preview = mPreview;
+        if (preview == null) {
+            return;
+        }
+        final int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        final int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        final int previewWidth = preview.getIntrinsicWidth();
+        final int previewHeight = preview.getIntrinsicHeight();
+        if (width <= 0 || height <= 0 || previewWidth <= 0 || previewHeight <= 0) {
+            preview.setBounds(0, 0, 0, 0);
+            return;
+        }
+        final float scale = Math.min((float) width / previewWidth, (float) height / previewHeight);
+        final int w = (int) (previewWidth * scale);
+        final int h = (int) (previewHeight * scale);
+        final int left = getPaddingLeft() + (width - w) / 2;
+        final int top = getPaddingTop() + (height - h) / 2;
+        preview.setBounds(left, top, left + w, top + h);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        updatePreviewBounds();
+    }
+
+    @Override
+    protected boolean verifyDrawable(@NonNull Drawable who) {
+        return who == mPreview || super.verifyDrawable(who);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (mPreview != null) {
+            mPreview.draw(canvas);
+        }
+    }
+
     @Override
     public void setTaskId(int id) {
         mId = id;
@@ -106,8 +255,18 @@ public class LargeGukizeView extends LargeImageView implements Unikery<IBData>,
         if (isLoading()) {
             mConaco.cancel(this);
         }
+        if (mStream != null) {
+            // The stream can't be read again. Load it from the url
+            // when attached again, or give up without url.
+            releaseStream();
+            if (!mHasData) {
+                mFailOrCancel = true;
+            }
+        }
+        cancelPreview();
         // Free image source
         setImage(null);
+        mImageReady = false;
     }
 
     public void load(String key, String url) {
@@ -119,6 +278,7 @@ public class LargeGukizeView extends LargeImageView implements Unikery<IBData>,
     }
 
     public void load(String key, String url, DataContainer container, boolean useNetwork) {
+        releaseStream();
         mKey = key;
         mUrl = url;
         mContainer = container;
@@ -126,12 +286,22 @@ public class LargeGukizeView extends LargeImageView implements Unikery<IBData>,
 
         mHasData = true;
         mFailOrCancel = false;
+        mImageReady = false;
+        cancelPreview();
 
         if (ViewCompat.isAttachedToWindow(this)) {
             if (mListener != null) {
                 mListener.onLoad();
             }
 
+            // Show the preview decoded before at once
+            if (mPreviewEnabled) {
+                final IBData preview = MemoryCache.get(getPreviewKey(key));
+                if (preview != null) {
+                    showPreview(preview);
+                }
+            }
+
             final ConacoTask.Builder<IBData> builder = new ConacoTask.Builder<>();
             builder.unikery = this;
             builder.key = key;
@@ -143,6 +313,88 @@ public class LargeGukizeView extends LargeImageView implements Unikery<IBData>,
         }
     }
 
+    /**
+     * Show the image while it is still downloading. The caller downloads
+     * it and writes bytes to the pipe. If preview is enabled, a JPEG is
+     * shown progressively as bytes arrive. The image source is set once
+     * all bytes arrived. Must be called in main thread.
+     * <p>
+     * It is only for callers running their own download. {@link #load(String, String)}
+     * doesn't stream, Conaco hands over the pipe after the download is done.
+     * The bytes are not written to Conaco's disk cache, so the image is
+     * downloaded again by Conaco from the url after detached, or not
+     * loaded again without url.
+     */
+    public void loadStream(@NonNull String key, @Nullable String url, @NonNull StreamingPipe pipe) {
+        if (isLoading()) {
+            mConaco.cancel(this);
+        }
+        releaseStream();
+        mKey = key;
+        mUrl = url;
+        mContainer = null;
+        mUseNetwork = true;
+
+        mHasData = url != null;
+        mFailOrCancel = false;
+        mImageReady = false;
+        cancelPreview();
+
+        if (mListener != null) {
+            mListener.onLoad();
+        }
+
+        mStream = pipe;
+        mStreamReceivedSize = 0;
+        if (mPreviewEnabled) {
+            mProgressive = new ProgressiveDecoder(pipe, mProgressiveCallback);
+        }
+        pipe.setListener(this);
+        // Bytes might arrive already
+        onStreamUpdate(pipe);
+    }
+
+    private void releaseStream() {
+        if (mStream != null) {
+            mStream.setListener(null);
+            mStream = null;
+        }
+        if (mProgressive != null) {
+            mProgressive.cancel();
+            mProgressive = null;
+        }
+    }
+
+    @Override
+    public void onStreamUpdate(@NonNull StreamingPipe pipe) {
+        if (pipe != mStream) {
+            return;
+        }
+
+        final long receivedSize = pipe.getSize();
+        if (receivedSize != mStreamReceivedSize && mListener != null) {
+            mListener.onProgress(receivedSize - mStreamReceivedSize, receivedSize, pipe.getTotalSize());
+        }
+        mStreamReceivedSize = receivedSize;
+
+        if (pipe.isFailed()) {
+            releaseStream();
+            cancelPreview();
+            mFailOrCancel = true;
+            if (mListener != null) {
+                mListener.onFailure();
+            }
+        } else if (pipe.isFinished()) {
+            // Keep the partial image until the image source is initialized
+            releaseStream();
+            setImage(new AutoSource2(pipe));
+        } else if (mProgressive != null) {
+            // The partial image is the main content, decode it to the view size
+            mProgressive.update(getWidth() > 0 ? getWidth() : PREVIEW_SIZE * PREVIEW_RATIO,
+                    getHeight() > 0 ? getHeight() : PREVIEW_SIZE * PREVIEW_RATIO);
+        }
+    }
+
     @Override
     public void onMiss(int source) {}
 
@@ -164,6 +416,10 @@ public class LargeGukizeView extends LargeImageView implements Unikery<IBData>,
     @Override
     public void onGetPipe(@NonNull InputStreamPipe pipe) {
         setImage(new AutoSource2(pipe));
+        // Show a preview while the image source is initializing
+        if (mPreviewEnabled && !mImageReady && mPreview == null && mPreviewLoad == null) {
+            loadPreview();
+        }
     }
 
     @Override
@@ -186,6 +442,10 @@ public class LargeGukizeView extends LargeImageView implements Unikery<IBData>,
 
     @Override
     public void onImageInitSuccessful() {
+        // Sharp tiles replace the preview
+        mImageReady = true;
+        cancelPreview();
+
         if (mListener != null) {
             mListener.onSuccess();
         }
@@ -193,11 +453,61 @@ public class LargeGukizeView extends LargeImageView implements Unikery<IBData>,
 
     @Override
     public void onImageInitFailed() {
+        cancelPreview();
+
         if (mListener != null) {
             mListener.onFailure();
         }
     }
 
+    private class PreviewUnikery implements Unikery<IBData> {
+
+        private int mPreviewId = Unikery.INVALID_ID;
+
+        @Override
+        public void setTaskId(int id) {
+            mPreviewId = id;
+        }
+
+        @Override
+        public int getTaskId() {
+            return mPreviewId;
+        }
+
+        @Override
+        public void onMiss(int source) {}
+
+        @Override
+        public void onProgress(long singleReceivedSize, long receivedSize, long totalSize) {}
+
+        @Override
+        public void onWait() {}
+
+        @Override
+        public void onGetValue(@NonNull IBData value, int source) {
+            mPreviewLoad = null;
+            // Drop it if the image source is ready first
+            if (!mImageReady && mPreviewEnabled) {
+                showPreview(value);
+            }
+        }
+
+        @Override
+        public void onGetPipe(@NonNull InputStreamPipe pipe) {
+            throw new IllegalStateException("Not support onGetPipe.");
+        }
+
+        @Override
+        public void onFailure() {
+            mPreviewLoad = null;
+        }
+
+        @Override
+        public void onCancel() {
+            mPreviewLoad = null;
+        }
+    }
+
     public interface Listener {
         void onLoad();
         void onProgress(long singleReceivedSize, long receivedSize, long totalSize);
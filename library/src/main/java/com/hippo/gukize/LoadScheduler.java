@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * LoadScheduler starts {@link SharedLoad} in priority order.
+ * <p>
+ * Images in memory cache never come here. A load reads disk cache
+ * first, then downloads if it misses. Only a few loads read disk cache
+ * and only a few download at the same time, so slow downloads don't
+ * block disk cache hits. Others wait. The load with highest priority
+ * starts first, and the newest one starts first in the same priority,
+ * so loads of rows flung away don't block rows on screen.
+ * <p>
+ * While paused, no load starts and no pipe is decoded. Images in memory
+ * cache, Gukize's or Conaco's, are still got at once by
+ * {@link SharedLoad#load}, they never wait here.
+ * Loads left by all views are dropped before resuming.
+ * All methods must be called in main thread.
+ */
+final class LoadScheduler {
+    private LoadScheduler() {}
+
+    private static int sMaxDiskFetching;
+    private static int sMaxNetworkFetching;
+    private static int sDiskFetching;
+    private static int sNetworkFetching;
+    private static final PriorityQueue<Pending> sDiskPending = new PriorityQueue<>();
+    private static final PriorityQueue<Pending> sNetworkPending = new PriorityQueue<>();
+    // The current entry of each pending load. Entries not here are stale,
+    // they are skipped when polled.
+    private static final Map<SharedLoad, Pending> sPending = new HashMap<>();
+    // Avoid nested loop, load might finish in start()
+    private static boolean sStarting;
+    private static boolean sPaused;
+    // Loads got pipes while paused
+    private static final List<SharedLoad> sHeldDecodes = new ArrayList<>();
+
+    static void init(int maxDiskFetching, int maxNetworkFetching) {
+        sMaxDiskFetching = maxDiskFetching;
+        sMaxNetworkFetching = maxNetworkFetching;
+    }
+
+    static void pause() {
+        sPaused = true;
+    }
+
+    static void resume() {
+        if (!sPaused) {
+            return;
+        }
+        sPaused = false;
+        final List<SharedLoad> held = new ArrayList<>(sHeldDecodes);
+        sHeldDecodes.clear();
+        for (SharedLoad load : held) {
+            load.decode();
+        }
+        startPending();
+    }
+
+    static boolean isPaused() {
+        return sPaused;
+    }
+
+    /**
+     * Decode the pipe of the load after resuming.
+     */
+    static void holdDecode(@NonNull SharedLoad load) {
+        sHeldDecodes.add(load);
+    }
+
+    /**
+     * Start the load when its lane is free,
+     * see {@link SharedLoad#isNetwork()}.
+     */
+    static void submit(@NonNull SharedLoad load) {
+        final Pending pending = new Pending(load);
+        sPending.put(load, pending);
+        if (load.isNetwork()) {
+            sNetworkPending.add(pending);
+        } else {
+            sDiskPending.add(pending);
+        }
+        startPending();
+    }
+
+    /**
+     * Sort the pending load again, its priority or sequence changes.
+     */
+    static void update(@NonNull SharedLoad load) {
+        final Pending pending = sPending.get(load);
+        if (pending != null && (pending.mPriority != load.getPriority() ||
+                pending.mSequence != load.getSequence())) {
+            submit(load);
+        }
+    }
+
+    /**
+     * Remove the load not started.
+     */
+    static void remove(@NonNull SharedLoad load) {
+        sPending.remove(load);
+        sHeldDecodes.remove(load);
+    }
+
+    /**
+     * Called when a started load finishes fetching.
+     */
+    static void onFetched(boolean network) {
+        if (network) {
+            --sNetworkFetching;
+        } else {
+            --sDiskFetching;
+        }
+        startPending();
+    }
+
+    private static void startPending() {
+        if (sStarting || sPaused) {
+            return;
+        }
+        sStarting = true;
+        try {
+            for (;;) {
+                SharedLoad load = null;
+                if (sDiskFetching < sMaxDiskFetching) {
+                    load = pollBest(sDiskPending);
+                }
+                if (load == null && sNetworkFetching < sMaxNetworkFetching) {
+                    load = pollBest(sNetworkPending);
+                }
+                if (load == null) {
+                    break;
+                }
+                if (load.isNetwork()) {
+                    ++sNetworkFetching;
+                } else {
+                    ++sDiskFetching;
+                }
+                load.start();
+            }
+        } finally {
+            sStarting = false;
+        }
+    }
+
+    @Nullable
+    private static SharedLoad pollBest(@NonNull PriorityQueue<Pending> queue) {
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            if (sPending.get(pending.mLoad) == pending) {
+                sPending.remove(pending.mLoad);
+                return pending.mLoad;
+            }
+        }
+        return null;
+    }
+
+    // A load in a lane, with its priority and sequence when queued
+    private static class Pending implements Comparable<Pending> {
+
+        private final SharedLoad mLoad;
+        private final int mPriority;
+        private final long mSequence;
+
+        private Pending(SharedLoad load) {
+            mLoad = load;
+            mPriority = load.getPriority();
+            mSequence = load.getSequence();
+        }
+
+        @Override
+        public int compareTo(@NonNull Pending another) {
+            if (mPriority != another.mPriority) {
+                return mPriority > another.mPriority ? -1 : 1;
+            }
+            return mSequence > another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+}
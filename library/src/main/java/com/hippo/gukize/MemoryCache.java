@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The memory cache owned by Gukize, beside the one in Conaco.
+ * It keeps images decoded to a target size, and images promoted
+ * from {@link WeakCache}. Each entry holds a reference of the IBData.
+ * Evicted entries are demoted to {@link WeakCache}.
+ * <p>
+ * It also mirrors the keys in Conaco memory cache, so memory cache
+ * hits are found before scheduling a load.
+ */
+final class MemoryCache {
+    private MemoryCache() {}
+
+    private static LruCache<String, IBData> sCache;
+    // The entries in Conaco memory cache, Conaco holds their references
+    private static final Map<String, IBData> sConacoEntries = new HashMap<>();
+
+    static void init(int maxSize) {
+        sCache = new LruCache<String, IBData>(maxSize) {
+            @Override
+            protected int sizeOf(String key, IBData value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, IBData oldValue, IBData newValue) {
+                if (oldValue != newValue) {
+                    WeakCache.put(key, oldValue);
+                }
+                oldValue.removeReference(MemoryCache.class);
+            }
+        };
+    }
+
+    /**
+     * Get IBData from memory cache or Conaco memory cache.
+     */
+    @Nullable
+    static IBData get(@NonNull String key) {
+        final IBData value = sCache.get(key);
+        if (value != null) {
+            return value;
+        }
+        synchronized (sConacoEntries) {
+            return sConacoEntries.get(key);
+        }
+    }
+
+    /**
+     * Put IBData to memory cache. A reference is added to the IBData.
+     */
+    static void put(@NonNull String key, @NonNull IBData value) {
+        value.addReference(MemoryCache.class);
+        sCache.put(key, value);
+    }
+
+    /**
+     * Called when Conaco puts the IBData to its memory cache.
+     */
+    static void onAddToConaco(@NonNull String key, @NonNull IBData value) {
+        synchronized (sConacoEntries) {
+            sConacoEntries.put(key, value);
+        }
+    }
+
+    /**
+     * Called when Conaco removes the IBData from its memory cache.
+     */
+    static void onRemoveFromConaco(@NonNull String key, @NonNull IBData value) {
+        synchronized (sConacoEntries) {
+            // It might be replaced
+            if (sConacoEntries.get(key) == value) {
+                sConacoEntries.remove(key);
+            }
+        }
+    }
+}
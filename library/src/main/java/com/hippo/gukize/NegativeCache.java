@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remember keys whose bytes can't be decoded. Network failures are
+ * not remembered, they might be transient. A known-bad key fails at once
+ * until its time to live expires. The time to live doubles
+ * for each failure in a row.
+ * All methods must be called in main thread.
+ */
+final class NegativeCache {
+    private NegativeCache() {}
+
+    private static final int MAX_SIZE = 128;
+    private static final long MIN_TTL = 5 * 1000; // 5s
+    private static final long MAX_TTL = 5 * 60 * 1000; // 5min
+
+    private static final Map<String, Entry> sMap =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_SIZE;
+                }
+            };
+
+    private static int sHitCount;
+
+    /**
+     * Return true if the key failed and the time to live doesn't expire.
+     */
+    static boolean contains(@NonNull String key) {
+        return contains(key, SystemClock.elapsedRealtime());
+    }
+
+    // The time is from SystemClock.elapsedRealtime()
+    static boolean contains(@NonNull String key, long now) {
+        final Entry entry = sMap.get(key);
+        // Keep expired entry for backoff
+        if (entry != null && now < entry.expire) {
+            ++sHitCount;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Mark the key failed.
+     */
+    static void put(@NonNull String key) {
+        put(key, SystemClock.elapsedRealtime());
+    }
+
+    // The time is from SystemClock.elapsedRealtime()
+    static void put(@NonNull String key, long now) {
+        Entry entry = sMap.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            sMap.put(key, entry);
+        }
+        final long ttl = entry.failures < 16 ? Math.min(MAX_TTL, MIN_TTL << entry.failures) : MAX_TTL;
+        entry.failures++;
+        entry.expire = now + ttl;
+    }
+
+    /**
+     * Forget the key, it loads successfully.
+     */
+    static void remove(@NonNull String key) {
+        sMap.remove(key);
+    }
+
+    static int getHitCount() {
+        return sHitCount;
+    }
+
+    private static class Entry {
+        int failures;
+        long expire;
+    }
+}
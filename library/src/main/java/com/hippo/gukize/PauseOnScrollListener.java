@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.support.annotation.Nullable;
+import android.widget.AbsListView;
+
+/**
+ * Pause Gukize while the list is flinging, and resume when it stops.
+ * Set it by {@link AbsListView#setOnScrollListener(AbsListView.OnScrollListener)}.
+ * For RecyclerView, call {@link #onScrollStateChanged(boolean)} with
+ * {@code newState == RecyclerView.SCROLL_STATE_SETTLING}
+ * from its {@code OnScrollListener}.
+ */
+public class PauseOnScrollListener implements AbsListView.OnScrollListener {
+
+    @Nullable
+    private final AbsListView.OnScrollListener mListener;
+
+    public PauseOnScrollListener() {
+        this(null);
+    }
+
+    /**
+     * The listener gets all scroll events.
+     */
+    public PauseOnScrollListener(@Nullable AbsListView.OnScrollListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Pause if it is flinging, otherwise resume.
+     */
+    public void onScrollStateChanged(boolean flinging) {
+        if (flinging) {
+            Gukize.pause();
+        } else {
+            Gukize.resume();
+        }
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        onScrollStateChanged(scrollState == SCROLL_STATE_FLING);
+        if (mListener != null) {
+            mListener.onScrollStateChanged(view, scrollState);
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if (mListener != null) {
+            mListener.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+        }
+    }
+}
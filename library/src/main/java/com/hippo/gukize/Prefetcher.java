@@ -0,0 +1,263 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.hippo.conaco.Conaco;
+import com.hippo.conaco.ConacoTask;
+import com.hippo.conaco.Unikery;
+import com.hippo.streampipe.InputStreamPipe;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Prefetcher loads images without view, to warm disk cache
+ * or memory cache. Prefetches wait while views are loading,
+ * and only a few of them run at the same time.
+ * All methods must be called in main thread.
+ */
+final class Prefetcher {
+    private Prefetcher() {}
+
+    private static final int MAX_RUNNING = 2;
+    // Prefetch waits if more view loads are in flight
+    private static final int MAX_VIEW_LOADS = 1;
+
+    private static Handler sHandler;
+    private static boolean sSchedulePosted;
+
+    private static final LinkedList<Task> sPending = new LinkedList<>();
+    private static final List<Task> sRunning = new ArrayList<>();
+
+    private static final Runnable sScheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sSchedulePosted = false;
+            startPending();
+        }
+    };
+
+    static void init() {
+        sHandler = new Handler(Looper.getMainLooper());
+    }
+
+    static void prefetch(@NonNull String key, @NonNull String url, @Gukize.PrefetchLevel int level,
+            @Nullable Object tag, @Nullable Gukize.PrefetchListener listener) {
+        sPending.add(new Task(key, url, level, tag, listener));
+        schedule();
+    }
+
+    /**
+     * Cancel pending and running prefetches with the tag.
+     * The listener is not called for them.
+     */
+    static void cancel(@NonNull Object tag) {
+        for (Iterator<Task> iterator = sPending.iterator(); iterator.hasNext();) {
+            if (tag.equals(iterator.next().mTag)) {
+                iterator.remove();
+            }
+        }
+        for (Task task : new ArrayList<>(sRunning)) {
+            if (tag.equals(task.mTag)) {
+                task.cancel();
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Check whether more prefetches can start. It is called
+     * when a load finishes, the check is posted.
+     */
+    static void schedule() {
+        if (!sSchedulePosted && !sPending.isEmpty()) {
+            sSchedulePosted = true;
+            sHandler.post(sScheduleRunnable);
+        }
+    }
+
+    private static void startPending() {
+        if (LoadScheduler.isPaused()) {
+            finishMemoryHits();
+            return;
+        }
+        while (!sPending.isEmpty() && sRunning.size() < MAX_RUNNING) {
+            // Running decoded prefetches are in flight too
+            int prefetchLoads = 0;
+            for (Task task : sRunning) {
+                if (task.mLoad != null && task.mLevel == Gukize.PREFETCH_DECODED) {
+                    ++prefetchLoads;
+                }
+            }
+            if (SharedLoad.getCount() - prefetchLoads > MAX_VIEW_LOADS) {
+                return;
+            }
+
+            final Task task = sPending.removeFirst();
+            sRunning.add(task);
+            task.start();
+        }
+    }
+
+    // Decoded prefetches of images in memory cache are done without loading
+    private static void finishMemoryHits() {
+        for (Iterator<Task> iterator = sPending.iterator(); iterator.hasNext();) {
+            final Task task = iterator.next();
+            if (task.mLevel == Gukize.PREFETCH_DECODED && MemoryCache.get(task.mKey) != null) {
+                iterator.remove();
+                task.finish(true);
+            }
+        }
+    }
+
+    private static class Task implements Unikery<IBData> {
+
+        private final String mKey;
+        private final String mUrl;
+        @Gukize.PrefetchLevel
+        private final int mLevel;
+        @Nullable
+        private final Object mTag;
+        @Nullable
+        private final Gukize.PrefetchListener mListener;
+
+        private int mId = Unikery.INVALID_ID;
+        @Nullable
+        private SharedLoad mLoad;
+        // Only for disk only prefetch
+        @Nullable
+        private SizedLoader.Task mCheckTask;
+        private boolean mFinished;
+
+        private Task(String key, String url, int level, Object tag, Gukize.PrefetchListener listener) {
+            mKey = key;
+            mUrl = url;
+            mLevel = level;
+            mTag = tag;
+            mListener = listener;
+        }
+
+        private void start() {
+            // It failed recently
+            if (NegativeCache.contains(mKey)) {
+                finish(false);
+                return;
+            }
+
+            final Conaco<IBData> conaco = Gukize.getConaco();
+            final ConacoTask.Builder<IBData> builder = new ConacoTask.Builder<>();
+            builder.unikery = this;
+            builder.key = mKey;
+            builder.url = mUrl;
+            builder.useNetwork = true;
+            if (mLevel == Gukize.PREFETCH_DISK_ONLY) {
+                // Don't decode, the pipe from disk cache is enough
+                mLoad = SharedLoad.fetch(conaco, builder, Gukize.PRIORITY_PREFETCH);
+            } else {
+                // Views of the key join it
+                mLoad = SharedLoad.load(conaco, builder, mKey, 0, 0, Gukize.PRIORITY_PREFETCH);
+            }
+        }
+
+        private void cancel() {
+            mFinished = true;
+            sRunning.remove(this);
+            if (mLoad != null) {
+                final SharedLoad load = mLoad;
+                mLoad = null;
+                load.unsubscribe(this);
+            }
+            if (mCheckTask != null) {
+                mCheckTask.cancel();
+                mCheckTask = null;
+            }
+        }
+
+        private void finish(boolean success) {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            mLoad = null;
+            sRunning.remove(this);
+            if (mListener != null) {
+                mListener.onPrefetch(mKey, success);
+            }
+            schedule();
+        }
+
+        @Override
+        public void setTaskId(int id) {
+            mId = id;
+        }
+
+        @Override
+        public int getTaskId() {
+            return mId;
+        }
+
+        @Override
+        public void onMiss(@Conaco.Source int source) {}
+
+        @Override
+        public void onWait() {}
+
+        @Override
+        public void onProgress(long singleReceivedSize, long receivedSize, long totalSize) {}
+
+        @Override
+        public void onGetValue(@NonNull IBData value, @Conaco.Source int source) {
+            // It is in memory cache now, or recycled by SharedLoad
+            finish(true);
+        }
+
+        @Override
+        public void onGetPipe(@NonNull InputStreamPipe pipe) {
+            mLoad = null;
+            if (mFinished) {
+                SizedLoader.dropPipe(pipe);
+                return;
+            }
+            // It is in disk cache now, check whether it is a image
+            mCheckTask = SizedLoader.check(pipe, Gukize.PRIORITY_PREFETCH, new SizedLoader.CheckCallback() {
+                @Override
+                public void onCheck(boolean isImage) {
+                    mCheckTask = null;
+                    if (!isImage) {
+                        NegativeCache.put(mKey);
+                    }
+                    finish(isImage);
+                }
+            });
+        }
+
+        @Override
+        public void onFailure() {
+            finish(false);
+        }
+
+        @Override
+        public void onCancel() {}
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.hippo.yorozuya.thread.PriorityThreadFactory;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ProgressiveDecoder decodes a JPEG still downloading in a {@link StreamingPipe}.
+ * <p>
+ * The decoder fills rows not arrived yet, so a partial baseline JPEG
+ * shows its top part and a partial progressive JPEG shows the coarse
+ * scans arrived. Segments are walked as bytes arrive, see {@link Scanner}.
+ * A progressive JPEG is decoded once a scan completes, a baseline one each
+ * time a step of bytes arrives. Only one decode runs at a time, the latest
+ * bytes win.
+ */
+final class ProgressiveDecoder {
+
+    private static final String LOG_TAG = ProgressiveDecoder.class.getSimpleName();
+
+    // Bytes between two decodes of a baseline JPEG
+    private static final int MIN_BASELINE_STEP = 64 * 1024;
+    private static final int DEFAULT_BASELINE_STEP = 128 * 1024;
+    private static final int BASELINE_STEP_COUNT = 8;
+
+    private static ThreadPoolExecutor sExecutor;
+    private static Handler sHandler;
+
+    static void init() {
+        sExecutor = new ThreadPoolExecutor(
+                1, 1,
+                3000, TimeUnit.MILLISECONDS, // 3000ms
+                new LinkedBlockingQueue<Runnable>(),
+                new PriorityThreadFactory(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND));
+        sExecutor.allowCoreThreadTimeOut(true);
+        sHandler = new Handler(Looper.getMainLooper());
+    }
+
+    interface Callback {
+        /**
+         * Called in main thread with the partial image.
+         */
+        void onDecodePartial(@NonNull IBData value);
+    }
+
+    private final StreamingPipe mPipe;
+    private final Callback mCallback;
+
+    private final Scanner mScanner = new Scanner();
+
+    // The scan count or byte count of last decode
+    private int mDecodedScans;
+    private int mDecodedSize;
+    @Nullable
+    private Task mTask;
+    private volatile boolean mCancelled;
+
+    ProgressiveDecoder(@NonNull StreamingPipe pipe, @NonNull Callback callback) {
+        mPipe = pipe;
+        mCallback = callback;
+    }
+
+    /**
+     * Scan bytes arrived, decode them if more of the image could be shown.
+     * Must be called in main thread.
+     */
+    void update(int targetWidth, int targetHeight) {
+        if (mCancelled || mScanner.isNotJpeg() || mPipe.isFinished() || mPipe.isFailed()) {
+            return;
+        }
+
+        final int size = mPipe.getSize();
+        final byte[] data = mPipe.getBuffer();
+        mScanner.scan(data, size);
+        if (mScanner.isNotJpeg() || mTask != null || !mScanner.isScanStarted()) {
+            // Wait for the running decode, it updates again when done
+            return;
+        }
+
+        final int scans = mScanner.getCompleteScans();
+        final boolean worth;
+        if (mScanner.isProgressive()) {
+            worth = scans > mDecodedScans;
+        } else {
+            worth = size - mDecodedSize >= getBaselineStep();
+        }
+        if (worth) {
+            mDecodedScans = scans;
+            mDecodedSize = size;
+            mTask = new Task(data, size, targetWidth, targetHeight);
+            sExecutor.execute(mTask);
+        }
+    }
+
+    private int getBaselineStep() {
+        final long totalSize = mPipe.getTotalSize();
+        if (totalSize <= 0) {
+            return DEFAULT_BASELINE_STEP;
+        }
+        return (int) Math.max(MIN_BASELINE_STEP, totalSize / BASELINE_STEP_COUNT);
+    }
+
+    /**
+     * No more partial image. Must be called in main thread.
+     */
+    void cancel() {
+        mCancelled = true;
+        if (mTask != null) {
+            sExecutor.remove(mTask);
+            mTask = null;
+        }
+    }
+
+    @Nullable
+    private static Bitmap decode(@NonNull byte[] data, int size, int targetWidth, int targetHeight) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, size, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = ImageDecoder.computeSample(options.outWidth, options.outHeight,
+                targetWidth, targetHeight);
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, size, options);
+        } catch (OutOfMemoryError e) {
+            Log.d(LOG_TAG, "Can't decode partial image, out of memory.");
+            return null;
+        }
+    }
+
+    /**
+     * Scanner walks the segments of a JPEG as bytes arrive. Marker segments
+     * are skipped by their length, so bytes in APPn and other payloads are
+     * never taken as markers. Markers are only searched in entropy-coded
+     * data, where 0xFF is stuffed with 0x00. A scan is complete when the
+     * marker after its entropy-coded data arrives.
+     */
+    static final class Scanner {
+
+        private static final int STATE_START = 0;
+        private static final int STATE_SEGMENT = 1;
+        private static final int STATE_ENTROPY = 2;
+        private static final int STATE_END = 3;
+
+        private static final int MARKER_SOI = 0xD8;
+        private static final int MARKER_EOI = 0xD9;
+        private static final int MARKER_SOS = 0xDA;
+        private static final int MARKER_TEM = 0x01;
+        private static final int MARKER_RST0 = 0xD0;
+        private static final int MARKER_RST7 = 0xD7;
+
+        private int mState = STATE_START;
+        // The next byte to read, it might be beyond the bytes arrived
+        private int mPosition;
+        private boolean mNotJpeg;
+        private boolean mProgressive;
+        private boolean mScanStarted;
+        private int mCompleteScans;
+
+        /**
+         * Scan the bytes arrived. The first {@code size} bytes
+         * must be the same as last time.
+         */
+        void scan(@NonNull byte[] data, int size) {
+            while (mState != STATE_END) {
+                if (mState == STATE_START) {
+                    if (size < 2) {
+                        return;
+                    }
+                    if ((data[0] & 0xff) != 0xFF || (data[1] & 0xff) != MARKER_SOI) {
+                        mNotJpeg = true;
+                        mState = STATE_END;
+                        return;
+                    }
+                    mPosition = 2;
+                    mState = STATE_SEGMENT;
+                } else if (mState == STATE_SEGMENT) {
+                    if (!scanSegment(data, size)) {
+                        return;
+                    }
+                } else {
+                    if (!scanEntropy(data, size)) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        // Return false if more bytes are needed
+        private boolean scanSegment(byte[] data, int size) {
+            final int p = mPosition;
+            if (p + 1 >= size) {
+                return false;
+            }
+            if ((data[p] & 0xff) != 0xFF) {
+                // Broken, stop scanning
+                mState = STATE_END;
+                return true;
+            }
+            final int marker = data[p + 1] & 0xff;
+            if (marker == 0xFF) {
+                // Fill byte
+                mPosition = p + 1;
+                return true;
+            }
+            if (marker == MARKER_TEM || (marker >= MARKER_RST0 && marker <= MARKER_RST7)) {
+                // No length
+                mPosition = p + 2;
+                return true;
+            }
+            if (marker == MARKER_EOI || marker == MARKER_SOI) {
+                mState = STATE_END;
+                return true;
+            }
+            if (p + 3 >= size) {
+                return false;
+            }
+            final int length = ((data[p + 2] & 0xff) << 8) | (data[p + 3] & 0xff);
+            if (length < 2) {
+                mState = STATE_END;
+                return true;
+            }
+            if (isProgressiveSof(marker)) {
+                mProgressive = true;
+            }
+            mPosition = p + 2 + length;
+            if (marker == MARKER_SOS) {
+                mScanStarted = true;
+                mState = STATE_ENTROPY;
+            }
+            return true;
+        }
+
+        // Return false if more bytes are needed
+        private boolean scanEntropy(byte[] data, int size) {
+            int p = mPosition;
+            // Keep the last 0xFF, its marker might not arrive yet
+            for (; p < size - 1; p++) {
+                if ((data[p] & 0xff) != 0xFF) {
+                    continue;
+                }
+                final int marker = data[p + 1] & 0xff;
+                if (marker == 0x00 || marker == 0xFF ||
+                        (marker >= MARKER_RST0 && marker <= MARKER_RST7)) {
+                    // Stuffed byte, fill byte or restart marker
+                    if (marker != 0xFF) {
+                        p++;
+                    }
+                    continue;
+                }
+                // The scan ends, read the marker as a segment
+                ++mCompleteScans;
+                mPosition = p;
+                mState = STATE_SEGMENT;
+                return true;
+            }
+            mPosition = p;
+            return false;
+        }
+
+        // SOF2, SOF6, SOF10 and SOF14 are progressive
+        private static boolean isProgressiveSof(int marker) {
+            return marker == 0xC2 || marker == 0xC6 || marker == 0xCA || marker == 0xCE;
+        }
+
+        boolean isNotJpeg() {
+            return mNotJpeg;
+        }
+
+        boolean isProgressive() {
+            return mProgressive;
+        }
+
+        /**
+         * Return true if the entropy-coded data of the first scan starts.
+         */
+        boolean isScanStarted() {
+            return mScanStarted;
+        }
+
+        /**
+         * Return the count of scans whose entropy-coded data is complete.
+         */
+        int getCompleteScans() {
+            return mCompleteScans;
+        }
+    }
+
+    private class Task implements Runnable {
+
+        private final byte[] mData;
+        private final int mSize;
+        private final int mWidth;
+        private final int mHeight;
+
+        private Task(byte[] data, int size, int width, int height) {
+            mData = data;
+            mSize = size;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public void run() {
+            // Bytes before mSize never change, no copy needed
+            final Bitmap bitmap = mCancelled ? null : decode(mData, mSize, mWidth, mHeight);
+            sHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mTask != Task.this) {
+                        // Cancelled
+                        if (bitmap != null) {
+                            BitmapPool.put(bitmap);
+                        }
+                        return;
+                    }
+                    mTask = null;
+                    if (bitmap != null) {
+                        mCallback.onDecodePartial(new BData(bitmap));
+                    }
+                    // More bytes might arrive while decoding
+                    update(mWidth, mHeight);
+                }
+            });
+        }
+    }
+}
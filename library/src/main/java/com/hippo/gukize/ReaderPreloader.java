@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ReaderPreloader keeps neighbor pages of a reader ready.
+ * <p>
+ * Pages in the window around current page should keep their views,
+ * for example by {@code ViewPager.setOffscreenPageLimit(int)} with
+ * the window from {@link WindowListener}, so their {@link LargeGukizeView}
+ * keep initialized image sources. Pages beyond the window, as far as
+ * the window again, are prefetched to disk cache, next pages first.
+ * <p>
+ * Under memory pressure the window shrinks to one page and prefetches
+ * are cancelled. It grows back when the page changes.
+ * All methods must be called in main thread.
+ */
+public class ReaderPreloader implements ComponentCallbacks2 {
+
+    private static final int MIN_WINDOW = 1;
+
+    private final Context mContext;
+    private final PageProvider mProvider;
+    @Nullable
+    private final WindowListener mWindowListener;
+    private int mWindow;
+    private int mCurrentPage = -1;
+    private boolean mTrimmed;
+    private boolean mReleased;
+
+    // Tags of prefetching pages
+    private final Map<Integer, Object> mPrefetches = new HashMap<>();
+
+    /**
+     * @param window the count of pages kept ready on each side of current page
+     */
+    public ReaderPreloader(@NonNull Context context, @NonNull PageProvider provider,
+            int window, @Nullable WindowListener windowListener) {
+        if (window < MIN_WINDOW) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        mContext = context.getApplicationContext();
+        mProvider = provider;
+        mWindow = window;
+        mWindowListener = windowListener;
+        mContext.registerComponentCallbacks(this);
+    }
+
+    /**
+     * Return the count of pages to keep on each side of current page.
+     */
+    public int getWindow() {
+        return mTrimmed ? MIN_WINDOW : mWindow;
+    }
+
+    public void setWindow(int window) {
+        if (window < MIN_WINDOW) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        mWindow = window;
+        mTrimmed = false;
+        onWindowChange();
+    }
+
+    /**
+     * Called when current page changes.
+     */
+    public void setCurrentPage(int page) {
+        if (mReleased) {
+            return;
+        }
+        mCurrentPage = page;
+        if (mTrimmed) {
+            // Try full window again
+            mTrimmed = false;
+            onWindowChange();
+        } else {
+            prefetch();
+        }
+    }
+
+    /**
+     * Cancel prefetches and stop listening memory pressure.
+     */
+    public void release() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        mContext.unregisterComponentCallbacks(this);
+        cancelPrefetches(null);
+    }
+
+    private void onWindowChange() {
+        if (mWindowListener != null) {
+            mWindowListener.onWindowChange(getWindow());
+        }
+        prefetch();
+    }
+
+    // Prefetch pages beyond the window, cancel others
+    private void prefetch() {
+        if (mCurrentPage < 0 || mTrimmed) {
+            cancelPrefetches(null);
+            return;
+        }
+
+        final int window = getWindow();
+        final int pageCount = mProvider.getPageCount();
+        final List<Integer> pages = new ArrayList<>();
+        for (int i = window + 1; i <= window * 2; i++) {
+            // Next pages first
+            if (mCurrentPage + i < pageCount) {
+                pages.add(mCurrentPage + i);
+            }
+            if (mCurrentPage - i >= 0) {
+                pages.add(mCurrentPage - i);
+            }
+        }
+        cancelPrefetches(pages);
+
+        for (Integer page : pages) {
+            if (mPrefetches.containsKey(page)) {
+                continue;
+            }
+            final String key = mProvider.getKey(page);
+            final String url = mProvider.getUrl(page);
+            if (key == null || url == null) {
+                continue;
+            }
+            final Object tag = new Object();
+            mPrefetches.put(page, tag);
+            Gukize.prefetch(key, url, Gukize.PREFETCH_DISK_ONLY, tag, new PagePrefetchListener(page, tag));
+        }
+    }
+
+    // Cancel prefetches of pages not in the list, null for all
+    private void cancelPrefetches(@Nullable List<Integer> keep) {
+        for (Object page : mPrefetches.keySet().toArray()) {
+            if (keep == null || !keep.contains(page)) {
+                Gukize.cancelPrefetch(mPrefetches.remove(page));
+            }
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        // TRIM_MEMORY_UI_HIDDEN is not memory pressure
+        final boolean pressure = (level >= TRIM_MEMORY_RUNNING_LOW && level < TRIM_MEMORY_UI_HIDDEN)
+                || level >= TRIM_MEMORY_MODERATE;
+        if (pressure && !mTrimmed && !mReleased) {
+            mTrimmed = true;
+            onWindowChange();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {}
+
+    // Pages might share a key, so the prefetch is found by page and tag
+    private class PagePrefetchListener implements Gukize.PrefetchListener {
+
+        private final int mPage;
+        private final Object mTag;
+
+        PagePrefetchListener(int page, Object tag) {
+            mPage = page;
+            mTag = tag;
+        }
+
+        @Override
+        public void onPrefetch(@NonNull String key, boolean success) {
+            // Keep the map small, the page is in disk cache now
+            if (mPrefetches.get(mPage) == mTag) {
+                mPrefetches.remove(mPage);
+            }
+        }
+    }
+
+    public interface PageProvider {
+        int getPageCount();
+
+        /**
+         * Return the key of the page, null to skip it.
+         */
+        @Nullable
+        String getKey(int page);
+
+        /**
+         * Return the url of the page, null to skip it.
+         */
+        @Nullable
+        String getUrl(int page);
+    }
+
+    public interface WindowListener {
+        /**
+         * Called when the count of pages to keep on each side changes.
+         */
+        void onWindowChange(int window);
+    }
+}
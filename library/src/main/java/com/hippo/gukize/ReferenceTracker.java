@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Debug tool to find leaked {@link IBData}.
+ * It records which holder adds each reference and where, and reports
+ * the IBData which is garbage-collected while still referenced.
+ * Its Bitmap or ImageData is never recycled.
+ */
+final class ReferenceTracker {
+    private ReferenceTracker() {}
+
+    private static final String LOG_TAG = ReferenceTracker.class.getSimpleName();
+
+    private static boolean sEnabled;
+    private static final ReferenceQueue<IBData> sQueue = new ReferenceQueue<>();
+    // Keep Trackers reachable until IBData is collected
+    private static final Set<Tracker> sTrackers = Collections.synchronizedSet(new HashSet<Tracker>());
+
+    static void init(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Start tracking the IBData. Return null if not enabled.
+     */
+    @Nullable
+    static Tracker track(@NonNull IBData data) {
+        if (!sEnabled) {
+            return null;
+        }
+        reportCollected();
+        final Tracker tracker = new Tracker(data);
+        sTrackers.add(tracker);
+        return tracker;
+    }
+
+    // Report all collected IBData which are still referenced
+    private static void reportCollected() {
+        Tracker tracker;
+        while ((tracker = (Tracker) sQueue.poll()) != null) {
+            sTrackers.remove(tracker);
+            tracker.report();
+        }
+    }
+
+    static class Tracker extends WeakReference<IBData> {
+
+        private final String mName;
+        // Where the references are added, by holder identity. Holders are
+        // not kept, they might hold the IBData and keep it from collected.
+        private final Map<String, List<Throwable>> mSites = new HashMap<>();
+
+        private Tracker(IBData data) {
+            super(data, sQueue);
+            mName = data.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(data));
+        }
+
+        @NonNull
+        private static String getHolderId(@NonNull Object holder) {
+            return holder.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(holder));
+        }
+
+        synchronized void onAddReference(@NonNull Object holder) {
+            final String id = getHolderId(holder);
+            List<Throwable> sites = mSites.get(id);
+            if (sites == null) {
+                sites = new ArrayList<>(1);
+                mSites.put(id, sites);
+            }
+            sites.add(new Throwable("Reference added by " + id +
+                    " in thread " + Thread.currentThread().getName()));
+        }
+
+        synchronized void onRemoveReference(@NonNull Object holder) {
+            final String id = getHolderId(holder);
+            final List<Throwable> sites = mSites.get(id);
+            if (sites == null) {
+                Log.w(LOG_TAG, id + " removes a reference of " + mName + " it doesn't hold.");
+                return;
+            }
+            sites.remove(sites.size() - 1);
+            if (sites.isEmpty()) {
+                mSites.remove(id);
+            }
+        }
+
+        void onRecycle() {
+            // Recycled properly, stop tracking
+            sTrackers.remove(this);
+            clear();
+        }
+
+        private synchronized void report() {
+            if (mSites.isEmpty()) {
+                return;
+            }
+            Log.e(LOG_TAG, mName + " is garbage-collected with references of " +
+                    mSites.size() + " holder(s).");
+            for (List<Throwable> sites : mSites.values()) {
+                for (Throwable site : sites) {
+                    Log.e(LOG_TAG, "Leaked reference", site);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.hippo.conaco.Conaco;
+import com.hippo.conaco.ConacoTask;
+import com.hippo.conaco.DataContainer;
+import com.hippo.conaco.Unikery;
+import com.hippo.streampipe.InputStreamPipe;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One in-flight load shared by all {@link Unikery} loading the same key.
+ * <p>
+ * SharedLoad is the Unikery of the {@link ConacoTask}, and passes
+ * callbacks to its subscribers. If the task skips decode, SharedLoad
+ * decodes the pipe in {@link SizedLoader}, so the pipe is decoded once.
+ * The task is cancelled when the last subscriber leaves.
+ * <p>
+ * The image is read from disk cache first. If it misses and the load
+ * can use network, a second task downloads it.
+ * <p>
+ * The priority of the load is the highest priority of its subscribers.
+ * It is started by {@link LoadScheduler} in priority order.
+ * All methods must be called in main thread.
+ */
+final class SharedLoad implements Unikery<IBData>, SizedLoader.Callback {
+
+    // The loads in flight, keyed by memory cache key
+    private static final Map<String, SharedLoad> sLoads = new HashMap<>();
+
+    private final Conaco<IBData> mConaco;
+    private final String mKey;
+    // The key of the task
+    private final String mTaskKey;
+    private final String mUrl;
+    @Nullable
+    private final DataContainer mContainer;
+    private final boolean mSkipDecode;
+    private final boolean mUseNetwork;
+    private final int mBucketWidth;
+    private final int mBucketHeight;
+    // Only fetch to disk cache, see fetch()
+    private boolean mFetchOnly;
+    // Subscribers and their priorities
+    private final Map<Unikery<IBData>, Integer> mSubscribers = new LinkedHashMap<>();
+
+    // The builder before started
+    @Nullable
+    private ConacoTask.Builder<IBData> mBuilder;
+    @Gukize.LoadPriority
+    private int mPriority;
+    // Larger for newer subscribed load
+    private long mSequence;
+    private boolean mFetching;
+    // Whether the task downloads, or only reads disk cache
+    private boolean mNetwork;
+
+    private int mId = Unikery.INVALID_ID;
+    @Nullable
+    private SizedLoader.Task mDecodeTask;
+    // The pipe held while paused
+    @Nullable
+    private InputStreamPipe mPipe;
+    private boolean mFinished;
+
+    private static long sSequence;
+
+    private SharedLoad(Conaco<IBData> conaco, String key, ConacoTask.Builder<IBData> builder,
+            int bucketWidth, int bucketHeight) {
+        mConaco = conaco;
+        mKey = key;
+        mTaskKey = builder.key;
+        mUrl = builder.url;
+        mContainer = builder.dataContainer;
+        mSkipDecode = builder.skipDecode;
+        mUseNetwork = builder.useNetwork;
+        mBucketWidth = bucketWidth;
+        mBucketHeight = bucketHeight;
+    }
+
+    /**
+     * Subscribe the unikery of the builder to the load of the key.
+     * Join the load in flight, or start a new one. If the builder skips
+     * decode, the pipe is decoded to the bucket size and cached with the key.
+     * If the key is in memory cache, the unikery gets it at once.
+     * Return null if it finishes at once.
+     */
+    @Nullable
+    static SharedLoad load(@NonNull Conaco<IBData> conaco, @NonNull ConacoTask.Builder<IBData> builder,
+            @NonNull String key, int bucketWidth, int bucketHeight, @Gukize.LoadPriority int priority) {
+        final Unikery<IBData> subscriber = builder.unikery;
+
+        // Memory cache hit doesn't wait for LoadScheduler
+        IBData value = MemoryCache.get(key);
+        if (value == null) {
+            value = WeakCache.promote(key);
+        }
+        if (value != null) {
+            subscriber.onGetValue(value, Conaco.SOURCE_MEMORY);
+            return null;
+        }
+
+        // The load without network can't serve the one with network
+        SharedLoad load = sLoads.get(key);
+        if (load != null && (load.mUseNetwork || !builder.useNetwork)) {
+            if (!load.mSubscribers.containsKey(subscriber)) {
+                load.mSubscribers.put(subscriber, priority);
+                load.mSequence = sSequence++;
+                load.updatePriority();
+                subscriber.onMiss(Conaco.SOURCE_MEMORY);
+            }
+            return load;
+        }
+
+        load = new SharedLoad(conaco, key, builder, bucketWidth, bucketHeight);
+        load.mSubscribers.put(subscriber, priority);
+        load.mSequence = sSequence++;
+        load.mPriority = priority;
+        sLoads.put(key, load);
+        load.mBuilder = load.newBuilder(false);
+        LoadScheduler.submit(load);
+        return load.mFinished ? null : load;
+    }
+
+    /**
+     * Fetch the image of the builder to disk cache, in the lanes of
+     * {@link LoadScheduler}. The load is not shared. The pipe is passed
+     * to the unikery of the builder, which must drop it at last.
+     * Return null if it finishes at once.
+     */
+    @Nullable
+    static SharedLoad fetch(@NonNull Conaco<IBData> conaco, @NonNull ConacoTask.Builder<IBData> builder,
+            @Gukize.LoadPriority int priority) {
+        builder.skipDecode = true;
+        final SharedLoad load = new SharedLoad(conaco, builder.key, builder, 0, 0);
+        load.mFetchOnly = true;
+        load.mSubscribers.put(builder.unikery, priority);
+        load.mSequence = sSequence++;
+        load.mPriority = priority;
+        load.mBuilder = load.newBuilder(false);
+        LoadScheduler.submit(load);
+        return load.mFinished ? null : load;
+    }
+
+    @NonNull
+    private ConacoTask.Builder<IBData> newBuilder(boolean useNetwork) {
+        final ConacoTask.Builder<IBData> builder = new ConacoTask.Builder<>();
+        builder.unikery = this;
+        builder.key = mTaskKey;
+        builder.url = mUrl;
+        builder.dataContainer = mContainer;
+        builder.skipDecode = mSkipDecode;
+        builder.useNetwork = useNetwork;
+        return builder;
+    }
+
+    /**
+     * Return true if the task downloads, false if it only reads disk cache.
+     */
+    boolean isNetwork() {
+        return mNetwork;
+    }
+
+    void start() {
+        final ConacoTask.Builder<IBData> builder = mBuilder;
+        if (builder == null) {
+            throw new IllegalStateException("Can't start SharedLoad twice");
+        }
+        mBuilder = null;
+        mFetching = true;
+        mConaco.load(builder);
+    }
+
+    @Gukize.LoadPriority
+    int getPriority() {
+        return mPriority;
+    }
+
+    long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Change the priority of the subscriber.
+     */
+    void setPriority(@NonNull Unikery<IBData> subscriber, @Gukize.LoadPriority int priority) {
+        if (mSubscribers.containsKey(subscriber)) {
+            mSubscribers.put(subscriber, priority);
+            updatePriority();
+        }
+    }
+
+    private void updatePriority() {
+        int priority = Gukize.PRIORITY_PREFETCH;
+        for (int p : mSubscribers.values()) {
+            priority = Math.max(priority, p);
+        }
+        if (mPriority != priority) {
+            mPriority = priority;
+            if (mDecodeTask != null) {
+                mDecodeTask.setPriority(priority);
+            }
+        }
+        // The sequence might change too
+        LoadScheduler.update(this);
+    }
+
+    // Fetching from disk or network is done
+    private void onFetched() {
+        if (mFetching) {
+            mFetching = false;
+            LoadScheduler.onFetched(mNetwork);
+        }
+    }
+
+    @NonNull
+    String getKey() {
+        return mKey;
+    }
+
+    /**
+     * Remove the subscriber. It gets {@link #onCancel()}.
+     * The load is cancelled if no subscriber left.
+     */
+    void unsubscribe(@NonNull Unikery<IBData> subscriber) {
+        if (mSubscribers.remove(subscriber) == null) {
+            return;
+        }
+        subscriber.onCancel();
+
+        if (mSubscribers.isEmpty() && !mFinished) {
+            finish();
+            if (mBuilder != null || mPipe != null) {
+                // Not started or decode held
+                mBuilder = null;
+                if (mPipe != null) {
+                    SizedLoader.dropPipe(mPipe);
+                    mPipe = null;
+                }
+                LoadScheduler.remove(this);
+            }
+            if (mId != Unikery.INVALID_ID) {
+                mConaco.cancel(this);
+            }
+            onFetched();
+            if (mDecodeTask != null) {
+                mDecodeTask.cancel();
+                mDecodeTask = null;
+            }
+        }
+    }
+
+    /**
+     * Return the count of loads in flight.
+     */
+    static int getCount() {
+        return sLoads.size();
+    }
+
+    // No more callbacks to subscribers
+    private void finish() {
+        mFinished = true;
+        if (sLoads.get(mKey) == this) {
+            sLoads.remove(mKey);
+        }
+        // Prefetches might wait for it
+        Prefetcher.schedule();
+    }
+
+    // Copy it, subscribers might leave in callbacks
+    private List<Unikery<IBData>> getSubscribers() {
+        return new ArrayList<>(mSubscribers.keySet());
+    }
+
+    private List<Unikery<IBData>> takeSubscribers() {
+        final List<Unikery<IBData>> subscribers = getSubscribers();
+        mSubscribers.clear();
+        finish();
+        return subscribers;
+    }
+
+    @Override
+    public void setTaskId(int id) {
+        mId = id;
+    }
+
+    @Override
+    public int getTaskId() {
+        return mId;
+    }
+
+    @Override
+    public void onMiss(@Conaco.Source int source) {
+        if (mNetwork) {
+            // Subscribers know the misses from the disk cache task
+            return;
+        }
+        for (Unikery<IBData> subscriber : getSubscribers()) {
+            subscriber.onMiss(source);
+        }
+    }
+
+    @Override
+    public void onProgress(long singleReceivedSize, long receivedSize, long totalSize) {
+        for (Unikery<IBData> subscriber : getSubscribers()) {
+            subscriber.onProgress(singleReceivedSize, receivedSize, totalSize);
+        }
+    }
+
+    @Override
+    public void onWait() {
+        for (Unikery<IBData> subscriber : getSubscribers()) {
+            subscriber.onWait();
+        }
+    }
+
+    @Override
+    public void onGetValue(@NonNull IBData value, @Conaco.Source int source) {
+        onFetched();
+        if (mFinished) {
+            value.tryRecycle();
+            return;
+        }
+
+        NegativeCache.remove(mTaskKey);
+
+        // Hold it for all subscribers. If no subscriber takes it
+        // and it is not in memory cache, it is recycled at the end.
+        final boolean held = value.tryAddReference(this);
+        try {
+            for (Unikery<IBData> subscriber : takeSubscribers()) {
+                subscriber.onGetValue(value, source);
+            }
+        } finally {
+            if (held) {
+                value.removeReference(this);
+            }
+        }
+    }
+
+    @Override
+    public void onGetPipe(@NonNull InputStreamPipe pipe) {
+        onFetched();
+        if (mFinished) {
+            SizedLoader.dropPipe(pipe);
+            return;
+        }
+        mPipe = pipe;
+        if (LoadScheduler.isPaused()) {
+            LoadScheduler.holdDecode(this);
+        } else {
+            decode();
+        }
+    }
+
+    /**
+     * Decode the pipe got from Conaco.
+     */
+    void decode() {
+        final InputStreamPipe pipe = mPipe;
+        mPipe = null;
+        if (pipe == null) {
+            return;
+        }
+        if (mFinished) {
+            SizedLoader.dropPipe(pipe);
+        } else if (mFetchOnly) {
+            // Not shared, only one subscriber takes it
+            for (Unikery<IBData> subscriber : takeSubscribers()) {
+                subscriber.onGetPipe(pipe);
+            }
+        } else {
+            mDecodeTask = SizedLoader.decode(pipe, mKey, mBucketWidth, mBucketHeight, mPriority, this);
+        }
+    }
+
+    @Override
+    public void onDecode(@Nullable IBData value) {
+        mDecodeTask = null;
+        if (value != null) {
+            onGetValue(value, Conaco.SOURCE_DISK);
+        } else {
+            // Can't decode it, the key is bad
+            fail(true);
+        }
+    }
+
+    @Override
+    public void onFailure() {
+        onFetched();
+        if (mFinished) {
+            return;
+        }
+        if (!mNetwork && mUseNetwork) {
+            // Not in disk cache, download it
+            mId = Unikery.INVALID_ID;
+            mNetwork = true;
+            mBuilder = newBuilder(true);
+            LoadScheduler.submit(this);
+            return;
+        }
+        // Conaco doesn't tell why it failed. Without network it might be
+        // only a disk cache miss, with network it might be a transient
+        // error like offline or timeout, so the key is not known bad.
+        fail(false);
+    }
+
+    private void fail(boolean badKey) {
+        if (mFinished) {
+            return;
+        }
+        if (badKey) {
+            NegativeCache.put(mTaskKey);
+        }
+        for (Unikery<IBData> subscriber : takeSubscribers()) {
+            subscriber.onFailure();
+        }
+    }
+
+    @Override
+    public void onCancel() {
+        // Only cancelled by the last subscriber
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.hippo.streampipe.InputStreamPipe;
+import com.hippo.yorozuya.thread.PriorityThreadFactory;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SizedLoader decodes images to a target size.
+ * <p>
+ * {@link com.hippo.conaco.ValueHelper#decode(InputStreamPipe)} doesn't know
+ * the target size, so the pipe is got from Conaco with {@code skipDecode}.
+ * The disk cache is still keyed by the original key. SizedLoader decodes
+ * the pipe with subsampling and keeps the result in {@link MemoryCache},
+ * keyed by the original key and the size bucket.
+ * <p>
+ * Decode tasks wait in priority order, newest first in the same priority.
+ */
+final class SizedLoader {
+    private SizedLoader() {}
+
+    private static final String LOG_TAG = SizedLoader.class.getSimpleName();
+
+    private static ThreadPoolExecutor sExecutor;
+    private static Handler sHandler;
+    // Only touched in main thread
+    private static long sSequence;
+
+    static void init(int threadCount) {
+        sExecutor = new ThreadPoolExecutor(
+                threadCount, threadCount,
+                3000, TimeUnit.MILLISECONDS, // 3000ms
+                new PriorityBlockingQueue<Runnable>(),
+                new PriorityThreadFactory(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND));
+        sExecutor.allowCoreThreadTimeOut(true);
+        sHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Round the size up to power of two.
+     * Images in the same bucket share one cache entry.
+     */
+    static int getBucket(int size) {
+        int bucket = 1;
+        while (bucket < size) {
+            bucket *= 2;
+        }
+        return bucket;
+    }
+
+    /**
+     * Return the memory cache key for the key and the bucket size.
+     */
+    @NonNull
+    static String getKey(@NonNull String key, int bucketWidth, int bucketHeight) {
+        return key + "@" + bucketWidth + "x" + bucketHeight;
+    }
+
+    /**
+     * Decode the pipe in worker thread. The result is put to
+     * memory cache and returned in main thread.
+     * Must be called in main thread.
+     */
+    @NonNull
+    static Task decode(@NonNull InputStreamPipe pipe, @NonNull String sizedKey,
+            int bucketWidth, int bucketHeight, @Gukize.LoadPriority int priority,
+            @NonNull Callback callback) {
+        final Task task = new Task(pipe, sizedKey, bucketWidth, bucketHeight, callback, null);
+        task.mPriority = priority;
+        task.mSequence = sSequence++;
+        sExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Check in worker thread whether the pipe holds a image, without
+     * decoding it. The result is returned in main thread.
+     * Must be called in main thread.
+     */
+    @NonNull
+    static Task check(@NonNull InputStreamPipe pipe, @Gukize.LoadPriority int priority,
+            @NonNull CheckCallback callback) {
+        final Task task = new Task(pipe, null, 0, 0, null, callback);
+        task.mPriority = priority;
+        task.mSequence = sSequence++;
+        sExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Close and release the pipe which will not be decoded,
+     * so it doesn't keep the disk cache file.
+     */
+    static void dropPipe(@NonNull InputStreamPipe pipe) {
+        pipe.close();
+        pipe.release();
+    }
+
+    interface Callback {
+        /**
+         * Called in main thread. The value is null if failed.
+         */
+        void onDecode(@Nullable IBData value);
+    }
+
+    interface CheckCallback {
+        /**
+         * Called in main thread.
+         */
+        void onCheck(boolean isImage);
+    }
+
+    static class Task implements Runnable, Comparable<Task> {
+
+        private final InputStreamPipe mPipe;
+        // Null for check
+        @Nullable
+        private final String mKey;
+        private final int mWidth;
+        private final int mHeight;
+        // One of them is null
+        @Nullable
+        private final Callback mCallback;
+        @Nullable
+        private final CheckCallback mCheckCallback;
+        private volatile boolean mCancelled;
+        // Only changed while not in queue
+        private volatile int mPriority;
+        private long mSequence;
+
+        private Task(InputStreamPipe pipe, String key, int width, int height,
+                Callback callback, CheckCallback checkCallback) {
+            mPipe = pipe;
+            mKey = key;
+            mWidth = width;
+            mHeight = height;
+            mCallback = callback;
+            mCheckCallback = checkCallback;
+        }
+
+        /**
+         * The callback will not be called after cancelled.
+         * Must be called in main thread.
+         */
+        void cancel() {
+            mCancelled = true;
+            if (sExecutor.remove(this)) {
+                // It never runs
+                dropPipe(mPipe);
+            }
+        }
+
+        /**
+         * Change the priority if it is still waiting.
+         * Must be called in main thread.
+         */
+        void setPriority(@Gukize.LoadPriority int priority) {
+            if (mPriority == priority) {
+                return;
+            }
+            // Take it out to sort again
+            if (sExecutor.remove(this)) {
+                mPriority = priority;
+                sExecutor.execute(this);
+            } else {
+                mPriority = priority;
+            }
+        }
+
+        @Override
+        public int compareTo(@NonNull Task another) {
+            if (mPriority != another.mPriority) {
+                return mPriority > another.mPriority ? -1 : 1;
+            }
+            return mSequence > another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                dropPipe(mPipe);
+                return;
+            }
+            if (mCheckCallback != null) {
+                check(mCheckCallback);
+                return;
+            }
+            final IBData value = ImageDecoder.decode(mPipe, mWidth, mHeight);
+            if (value == null && mCancelled) {
+                return;
+            }
+            sHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // It might be cancelled while decoding
+                    if (mCancelled) {
+                        if (value != null) {
+                            value.recycle();
+                        }
+                        return;
+                    }
+                    if (value != null) {
+                        MemoryCache.put(mKey, value);
+                    }
+                    mCallback.onDecode(value);
+                }
+            });
+        }
+
+        private void check(final CheckCallback callback) {
+            final boolean isImage = ImageDecoder.isImage(mPipe);
+            sHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        callback.onCheck(isImage);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.hippo.streampipe.InputStreamPipe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+
+/**
+ * A InputStreamPipe of bytes still downloading.
+ * <p>
+ * The downloader writes bytes as they arrive, in any thread. Streams
+ * opened from it block until more bytes arrive or the download ends.
+ * The listener is told in main thread, so the image can be shown
+ * before the last byte arrives, see {@link LargeGukizeView#loadStream(String, String, StreamingPipe)}.
+ */
+public class StreamingPipe implements InputStreamPipe {
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private final long mTotalSize;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    @Nullable
+    private Listener mListener;
+
+    // Guarded by mLock. Bytes before mSize never change,
+    // mBuffer is copied when it grows.
+    private byte[] mBuffer = new byte[0];
+    private int mSize;
+    private boolean mFinished;
+    private boolean mFailed;
+    private boolean mNotifyPosted;
+    private final Object mLock = new Object();
+
+    @Nullable
+    private InputStream mStream;
+
+    private final Runnable mNotifyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mNotifyPosted = false;
+            }
+            if (mListener != null) {
+                mListener.onStreamUpdate(StreamingPipe.this);
+            }
+        }
+    };
+
+    /**
+     * @param totalSize the size of the whole file, -1 for unknown
+     */
+    public StreamingPipe(long totalSize) {
+        mTotalSize = totalSize;
+    }
+
+    /**
+     * Set the listener called in main thread when bytes arrive
+     * or the download ends. Must be called in main thread.
+     */
+    public void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    public long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * Append bytes. It can be called in any thread.
+     */
+    public void write(@NonNull byte[] b, int off, int len) {
+        synchronized (mLock) {
+            if (mFinished || mFailed) {
+                throw new IllegalStateException("Can't write to a finished StreamingPipe");
+            }
+            if (mSize + len > mBuffer.length) {
+                int capacity = Math.max(mBuffer.length, INITIAL_CAPACITY);
+                if (mTotalSize > capacity) {
+                    capacity = (int) Math.min(mTotalSize, Integer.MAX_VALUE);
+                }
+                while (capacity < mSize + len) {
+                    capacity *= 2;
+                }
+                mBuffer = Arrays.copyOf(mBuffer, capacity);
+            }
+            System.arraycopy(b, off, mBuffer, mSize, len);
+            mSize += len;
+            mLock.notifyAll();
+        }
+        postNotify();
+    }
+
+    /**
+     * All bytes arrived. It can be called in any thread.
+     */
+    public void finish() {
+        synchronized (mLock) {
+            mFinished = true;
+            mLock.notifyAll();
+        }
+        postNotify();
+    }
+
+    /**
+     * The download failed. It can be called in any thread.
+     */
+    public void fail() {
+        synchronized (mLock) {
+            mFailed = true;
+            mLock.notifyAll();
+        }
+        postNotify();
+    }
+
+    private void postNotify() {
+        synchronized (mLock) {
+            if (mNotifyPosted) {
+                return;
+            }
+            mNotifyPosted = true;
+        }
+        mHandler.post(mNotifyRunnable);
+    }
+
+    public int getSize() {
+        synchronized (mLock) {
+            return mSize;
+        }
+    }
+
+    public boolean isFinished() {
+        synchronized (mLock) {
+            return mFinished;
+        }
+    }
+
+    public boolean isFailed() {
+        synchronized (mLock) {
+            return mFailed;
+        }
+    }
+
+    /**
+     * Return the buffer holding bytes arrived. Only the first
+     * {@link #getSize()} bytes are valid, and they never change.
+     */
+    @NonNull
+    byte[] getBuffer() {
+        synchronized (mLock) {
+            return mBuffer;
+        }
+    }
+
+    @Override
+    public void obtain() {}
+
+    @Override
+    public void release() {}
+
+    @NonNull
+    @Override
+    public InputStream open() throws IOException {
+        if (mStream != null) {
+            throw new IllegalStateException("Please close it first");
+        }
+        mStream = new StreamingInputStream();
+        return mStream;
+    }
+
+    @Override
+    public void close() {
+        mStream = null;
+    }
+
+    private class StreamingInputStream extends InputStream {
+
+        private int mPosition;
+
+        // Wait for bytes after mPosition, return false if no more
+        private boolean waitBytes() throws IOException {
+            synchronized (mLock) {
+                while (mPosition >= mSize) {
+                    if (mFailed) {
+                        throw new IOException("Download failed");
+                    }
+                    if (mFinished) {
+                        return false;
+                    }
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                return true;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!waitBytes()) {
+                return -1;
+            }
+            return getBuffer()[mPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!waitBytes()) {
+                return -1;
+            }
+            final byte[] buffer;
+            final int size;
+            synchronized (mLock) {
+                buffer = mBuffer;
+                size = mSize;
+            }
+            final int count = Math.min(len, size - mPosition);
+            System.arraycopy(buffer, mPosition, b, off, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return Math.max(0, getSize() - mPosition);
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called in main thread when bytes arrive or the download ends.
+         */
+        void onStreamUpdate(@NonNull StreamingPipe pipe);
+    }
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.content.res.Resources;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
+import android.view.View;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timeline drives the frames of an animated {@link IBRenderer}.
+ * One or more {@link IBDrawable} can show the same timeline.
+ * The renderer is recycled when the last drawable leaves.
+ * All methods must be called in main thread.
+ */
+class Timeline {
+
+    private static final long NO_TIME = -1L;
+
+    private final IBRenderer mIBRenderer;
+    private final Task mTask;
+    private final List<IBDrawable> mDrawables = new ArrayList<>();
+
+    /** The sample to render frames. */
+    private int mSample;
+
+    /** The wanted frame rate, only touched by {@link AnimationGovernor}. */
+    float mRate;
+
+    /** The next frame in {@link FrameScheduler}. */
+    @Nullable
+    private Future<?> mNextFrame;
+
+    /** Continue the animation after {@link FrameScheduler} resumes. */
+    private final Runnable mResume = new Runnable() {
+        @Override
+        public void run() {
+            mTask.addTask(Commands.ADVANCE_ANIMATE);
+        }
+    };
+
+    private static final Rect sTempRect = new Rect();
+
+    // Frames skipped to keep real time, and the ones because rendering is late
+    private static final AtomicLong sSkippedFrames = new AtomicLong();
+    private static final AtomicLong sLateSkippedFrames = new AtomicLong();
+
+    /**
+     * Return the count of frames skipped by all timelines.
+     */
+    static long getSkippedFrameCount() {
+        return sSkippedFrames.get();
+    }
+
+    /**
+     * Return the count of frames skipped because rendering falls behind.
+     */
+    static long getLateSkippedFrameCount() {
+        return sLateSkippedFrames.get();
+    }
+
+    public Timeline(@NonNull IBRenderer ibRenderer) {
+        mIBRenderer = ibRenderer;
+        mSample = ibRenderer.getSample();
+        mTask = new Task();
+    }
+
+    @NonNull
+    public IBRenderer getRenderer() {
+        return mIBRenderer;
+    }
+
+    /**
+     * Return true if the timeline is recycled.
+     * A recycled timeline can't be attached.
+     */
+    public boolean isRecycled() {
+        return mTask.isRecycled();
+    }
+
+    void addDrawable(@NonNull IBDrawable drawable) {
+        if (isRecycled()) {
+            throw new IllegalStateException("Can't add drawable to a recycled Timeline.");
+        }
+        mDrawables.add(drawable);
+    }
+
+    void removeDrawable(@NonNull IBDrawable drawable) {
+        if (!mDrawables.remove(drawable) || !mDrawables.isEmpty()) {
+            return;
+        }
+        // No one shows the timeline
+        cancelFrame();
+        mTask.addTask(Commands.RECYCLE);
+    }
+
+    /**
+     * Return true if any drawable is running, except the one.
+     */
+    private boolean isTicking(@Nullable IBDrawable except) {
+        for (int i = 0, n = mDrawables.size(); i < n; i++) {
+            final IBDrawable drawable = mDrawables.get(i);
+            // Don't tick if no one shows the drawable,
+            // as Drawable.scheduleSelf() does.
+            if (drawable != except && drawable.isRunning() && drawable.getCallback() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // resetOrNext, false for reset, true for next
+    void setFrame(@NonNull IBDrawable drawable, boolean resetOrNext, boolean animate) {
+        // Check recycled
+        if (mTask.isRecycled() || mIBRenderer.isRecycled()) {
+            return;
+        }
+
+        // The timeline is ticking for other drawables,
+        // join it instead of changing frame.
+        if (isTicking(drawable)) {
+            drawable.invalidateSelf();
+            return;
+        }
+
+        cancelFrame();
+
+        // Add task
+        final int task = resetOrNext ? (animate ? Commands.ADVANCE_ANIMATE : Commands.ADVANCE) :
+                (animate ? Commands.RESET_ANIMATE : Commands.RESET);
+        mTask.addTask(task);
+    }
+
+    /**
+     * Called when a drawable stops running.
+     */
+    void onDrawableStop() {
+        if (!isTicking(null)) {
+            cancelFrame();
+        }
+    }
+
+    /**
+     * Called when the bounds of a drawable changes.
+     * Choose the largest power-of-two sample that
+     * keeps the frame not smaller than any drawable.
+     */
+    void onBoundsChange() {
+        if (mTask.isRecycled()) {
+            return;
+        }
+
+        int maxWidth = 0;
+        int maxHeight = 0;
+        for (int i = 0, n = mDrawables.size(); i < n; i++) {
+            final Rect bounds = mDrawables.get(i).getBounds();
+            maxWidth = Math.max(maxWidth, bounds.width());
+            maxHeight = Math.max(maxHeight, bounds.height());
+        }
+        // Not laid out yet
+        if (maxWidth <= 0 || maxHeight <= 0) {
+            return;
+        }
+
+        final int sample = ImageDecoder.computeSample(
+                mIBRenderer.getWidth(), mIBRenderer.getHeight(), maxWidth, maxHeight);
+
+        if (sample != mSample) {
+            mSample = sample;
+            mTask.addTask(Commands.SAMPLE, sample);
+        }
+    }
+
+    /**
+     * Return the largest fraction of the screen that
+     * a ticking drawable covers, 1 if unknown.
+     */
+    private float getVisibleFraction() {
+        final DisplayMetrics dm = Resources.getSystem().getDisplayMetrics();
+        final float screenArea = (float) dm.widthPixels * dm.heightPixels;
+        if (screenArea <= 0) {
+            return 1.0f;
+        }
+
+        float fraction = 0.0f;
+        for (int i = 0, n = mDrawables.size(); i < n; i++) {
+            final IBDrawable drawable = mDrawables.get(i);
+            final Drawable.Callback callback = drawable.getCallback();
+            if (!drawable.isRunning() || callback == null) {
+                continue;
+            }
+            if (!(callback instanceof View)) {
+                return 1.0f;
+            }
+            final View view = (View) callback;
+            if (view.getGlobalVisibleRect(sTempRect)) {
+                fraction = Math.max(fraction, sTempRect.width() * sTempRect.height() / screenArea);
+            }
+        }
+        return Math.min(fraction, 1.0f);
+    }
+
+    // The next frame starts at the time, but it isn't shown before due.
+    // The frames end before due are skipped.
+    private void scheduleFrame(long start, long due) {
+        if (mNextFrame != null) {
+            mNextFrame.cancel(false);
+            mNextFrame = null;
+        }
+        if (FrameScheduler.isPaused()) {
+            // Advance from the time of resuming
+            FrameScheduler.hold(mResume);
+        } else {
+            mTask.mTickStart = start;
+            mTask.mTickDue = due;
+            mNextFrame = FrameScheduler.schedule(mTask.mAdvance, due);
+        }
+    }
+
+    private void cancelFrame() {
+        if (mNextFrame != null) {
+            mNextFrame.cancel(false);
+            mNextFrame = null;
+        }
+        FrameScheduler.unhold(mResume);
+        AnimationGovernor.remove(this);
+    }
+
+    // Called in main thread after the worker updates the bitmap
+    private void onFrame(long time) {
+        final boolean swapped = mIBRenderer.swap();
+        for (int i = 0, n = mDrawables.size(); i < n; i++) {
+            mDrawables.get(i).invalidateSelf();
+        }
+        if (time != NO_TIME && isTicking(null)) {
+            final long start = time + mIBRenderer.getCurrentDelay();
+            final long interval = AnimationGovernor.getMinInterval(this, getVisibleFraction());
+            scheduleFrame(start, Math.max(start, time + interval));
+            // Render next frame to back buffer while this one is shown
+            if (swapped) {
+                mTask.addTask(Commands.PREPARE);
+            }
+        }
+    }
+
+    // Task runs in FrameScheduler only when it has work to do.
+    // It never blocks a worker thread.
+    private class Task implements Runnable {
+
+        // Max frames skipped in one tick
+        private static final int MAX_SKIP = 256;
+
+        private volatile boolean mRecycled;
+        // Whether the task is in FrameScheduler
+        private boolean mQueued;
+        // Guarded by mLock
+        private final Commands mCommands = new Commands();
+        private final Object mLock = new Object();
+
+        // The time of the frame to publish, guarded by mLock
+        private long mPublishTime;
+        private boolean mPublishPosted;
+        private final Runnable mPublish = new Runnable() {
+            @Override
+            public void run() {
+                final long time;
+                synchronized (mLock) {
+                    time = mPublishTime;
+                    mPublishPosted = false;
+                }
+                onFrame(time);
+            }
+        };
+
+        // When the next frame starts and when it is shown
+        private volatile long mTickStart;
+        private volatile long mTickDue;
+
+        // Scheduled in FrameScheduler when next frame is due
+        private final Runnable mAdvance = new Runnable() {
+            @Override
+            public void run() {
+                addTask(Commands.TICK);
+            }
+        };
+
+        public void addTask(int task) {
+            addTask(task, SystemClock.uptimeMillis());
+        }
+
+        // The arg is the time for most tasks, the sample for SAMPLE
+        public void addTask(int task, long arg) {
+            if (mRecycled) {
+                return;
+            }
+
+            synchronized (mLock) {
+                if (task == Commands.RECYCLE) {
+                    mRecycled = true;
+                }
+                mCommands.add(task, arg);
+                if (!mQueued) {
+                    mQueued = true;
+                    FrameScheduler.execute(this);
+                }
+            }
+        }
+
+        public boolean isRecycled() {
+            return mRecycled;
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                final int task;
+                final long arg;
+                synchronized (mLock) {
+                    if (mCommands.isEmpty()) {
+                        mQueued = false;
+                        return;
+                    }
+                    task = mCommands.getCommand();
+                    arg = mCommands.getArg();
+                    mCommands.remove();
+                }
+
+                switch (task) {
+                    case Commands.RESET:
+                        mIBRenderer.reset();
+                        publishFrame(NO_TIME);
+                        break;
+                    case Commands.RESET_ANIMATE:
+                        mIBRenderer.reset();
+                        // The frame starts when it is rendered, not when it is added
+                        publishFrame(SystemClock.uptimeMillis());
+                        break;
+                    case Commands.ADVANCE:
+                        mIBRenderer.advance();
+                        publishFrame(NO_TIME);
+                        break;
+                    case Commands.ADVANCE_ANIMATE:
+                        mIBRenderer.advance();
+                        publishFrame(SystemClock.uptimeMillis());
+                        break;
+                    case Commands.TICK:
+                        tick();
+                        break;
+                    case Commands.PREPARE:
+                        mIBRenderer.prepareNext();
+                        break;
+                    case Commands.SAMPLE:
+                        mIBRenderer.setSample((int) arg);
+                        publishFrame(NO_TIME);
+                        break;
+                    case Commands.RECYCLE:
+                        // Recycle mIBRenderer in main thread,
+                        // the bitmap might be drawing now.
+                        // Keep mQueued true, the task is over.
+                        FrameScheduler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mIBRenderer.recycle();
+                            }
+                        });
+                        return;
+                    default:
+                        throw new IllegalStateException("Invalid task: " + task);
+                }
+            }
+        }
+
+        // Find the frame should be on screen now, skip frames end before it.
+        // Skipped frames are only composited, not rendered to bitmap.
+        private void tick() {
+            long start = mTickStart;
+            final long due = mTickDue;
+            // The tick might run late if workers are busy
+            final long now = Math.max(due, SystemClock.uptimeMillis());
+            int skipped = 0;
+            int lateSkipped = 0;
+            int delay = mIBRenderer.skip();
+            while (skipped < MAX_SKIP && start + delay <= now) {
+                if (start + delay > due) {
+                    ++lateSkipped;
+                }
+                ++skipped;
+                start += delay;
+                delay = mIBRenderer.skip();
+            }
+            mIBRenderer.render();
+            if (skipped > 0) {
+                sSkippedFrames.addAndGet(skipped);
+                if (lateSkipped > 0) {
+                    sLateSkippedFrames.addAndGet(lateSkipped);
+                }
+            }
+            publishFrame(start);
+        }
+
+        // Frames published before main thread handles them are coalesced,
+        // the time to schedule next frame is kept.
+        private void publishFrame(long time) {
+            synchronized (mLock) {
+                if (time != NO_TIME || !mPublishPosted) {
+                    mPublishTime = time;
+                }
+                if (!mPublishPosted) {
+                    mPublishPosted = true;
+                    FrameScheduler.post(mPublish);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pending commands of the task and their args, in a ring buffer.
+     * Commands are coalesced, no more than one for each kind.
+     * It is not thread-safe.
+     */
+    static final class Commands {
+
+        static final int RESET = 0;
+        static final int RESET_ANIMATE = 1;
+        static final int ADVANCE = 2;
+        static final int ADVANCE_ANIMATE = 3;
+        static final int RECYCLE = 4;
+        static final int PREPARE = 5;
+        static final int SAMPLE = 6;
+        static final int TICK = 7;
+
+        private static final int CAPACITY = 8;
+
+        private final int[] mCommands = new int[CAPACITY];
+        private final long[] mArgs = new long[CAPACITY];
+        private int mHead;
+        private int mSize;
+
+        /**
+         * Add the command. RECYCLE drops all pending commands.
+         * RESET and RESET_ANIMATE drop all pending commands except SAMPLE.
+         * Other commands replace the pending one of the same kind,
+         * keeping its position.
+         */
+        void add(int command, long arg) {
+            switch (command) {
+                case RECYCLE:
+                    mSize = 0;
+                    break;
+                case RESET:
+                case RESET_ANIMATE:
+                    // Frames before reset are never shown
+                    retainSample();
+                    break;
+                default:
+                    // Replace the same pending one
+                    for (int i = 0; i < mSize; i++) {
+                        final int index = (mHead + i) % CAPACITY;
+                        if (mCommands[index] == command) {
+                            mArgs[index] = arg;
+                            return;
+                        }
+                    }
+                    break;
+            }
+            final int index = (mHead + mSize) % CAPACITY;
+            mCommands[index] = command;
+            mArgs[index] = arg;
+            ++mSize;
+        }
+
+        // Drop all pending commands except SAMPLE
+        private void retainSample() {
+            int size = 0;
+            for (int i = 0; i < mSize; i++) {
+                final int index = (mHead + i) % CAPACITY;
+                if (mCommands[index] == SAMPLE) {
+                    final int to = (mHead + size) % CAPACITY;
+                    mCommands[to] = SAMPLE;
+                    mArgs[to] = mArgs[index];
+                    ++size;
+                }
+            }
+            mSize = size;
+        }
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /**
+         * Return the first command. It must not be empty.
+         */
+        int getCommand() {
+            return mCommands[mHead];
+        }
+
+        /**
+         * Return the arg of the first command. It must not be empty.
+         */
+        long getArg() {
+            return mArgs[mHead];
+        }
+
+        /**
+         * Remove the first command. It must not be empty.
+         */
+        void remove() {
+            mHead = (mHead + 1) % CAPACITY;
+            --mSize;
+        }
+    }
+}
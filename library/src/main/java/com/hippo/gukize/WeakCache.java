@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The second tier of memory cache. IBData evicted from memory cache
+ * is kept here weakly. If it is still referenced, for example drawn
+ * by a view, it can be found here instead of decoded again.
+ * All methods are thread-safe.
+ */
+final class WeakCache {
+    private WeakCache() {}
+
+    private static final Map<String, Entry> sMap = new HashMap<>();
+    // Entries whose IBData is collected
+    private static final ReferenceQueue<IBData> sQueue = new ReferenceQueue<>();
+
+    /**
+     * Demote IBData evicted from memory cache.
+     */
+    static void put(@NonNull String key, @NonNull IBData value) {
+        synchronized (sMap) {
+            trim();
+            sMap.put(key, new Entry(key, value));
+        }
+    }
+
+    /**
+     * Find IBData which is still referenced, and promote it
+     * back to {@link MemoryCache}. Must be called in main thread.
+     */
+    @Nullable
+    static IBData promote(@NonNull String key) {
+        final IBData value;
+        synchronized (sMap) {
+            final Entry entry = sMap.remove(key);
+            if (entry == null) {
+                return null;
+            }
+            value = entry.get();
+            // Hold it while promoting
+            if (value == null || !value.tryAddReference(sMap)) {
+                return null;
+            }
+        }
+        MemoryCache.put(key, value);
+        value.removeReference(sMap);
+        return value;
+    }
+
+    // Remove entries of collected IBData. Recycled IBData is
+    // removed in promote(), or here once it is collected.
+    private static void trim() {
+        Reference<? extends IBData> reference;
+        while ((reference = sQueue.poll()) != null) {
+            final Entry entry = (Entry) reference;
+            // The key might be put again
+            if (sMap.get(entry.mKey) == entry) {
+                sMap.remove(entry.mKey);
+            }
+        }
+    }
+
+    private static class Entry extends WeakReference<IBData> {
+
+        private final String mKey;
+
+        private Entry(String key, IBData value) {
+            super(value, sQueue);
+            mKey = key;
+        }
+    }
+}
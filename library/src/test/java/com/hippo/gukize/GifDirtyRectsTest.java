@@ -0,0 +1,206 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class GifDirtyRectsTest {
+
+    private static final int[] EXPECTED = {
+            // The first frame is the whole image
+            0, 0, 20, 10,
+            // Drawn over the first frame
+            2, 2, 5, 6,
+            // The second frame is cleared to background
+            2, 1, 8, 6,
+            // Clipped to the image
+            15, 5, 20, 10,
+    };
+
+    @Test
+    public void write() {
+        final GifDirtyRects rects = new GifDirtyRects();
+        final byte[] gif = createGif(true);
+        rects.write(gif, 0, gif.length);
+        assertArrayEquals(EXPECTED, rects.getRects(4));
+    }
+
+    @Test
+    public void writeByteByByte() {
+        final GifDirtyRects rects = new GifDirtyRects();
+        for (byte b : createGif(true)) {
+            rects.write(b & 0xff);
+        }
+        assertArrayEquals(EXPECTED, rects.getRects(4));
+    }
+
+    @Test
+    public void tee() throws IOException {
+        final GifDirtyRects rects = new GifDirtyRects();
+        final byte[] gif = createGif(true);
+        final InputStream is = rects.tee(new ByteArrayInputStream(gif));
+        final byte[] buffer = new byte[7];
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        // Mix all kinds of reading, like a decoder might do
+        for (int i = 0; ; i++) {
+            if (i % 3 == 0) {
+                final int b = is.read();
+                if (b < 0) {
+                    break;
+                }
+                os.write(b);
+            } else if (i % 3 == 1) {
+                final int n = is.read(buffer, 0, buffer.length);
+                if (n < 0) {
+                    break;
+                }
+                os.write(buffer, 0, n);
+            } else {
+                final long n = is.skip(5);
+                for (int j = 0; j < n; j++) {
+                    os.write(gif[os.size()]);
+                }
+            }
+        }
+        assertArrayEquals(gif, os.toByteArray());
+        assertArrayEquals(EXPECTED, rects.getRects(4));
+    }
+
+    @Test
+    public void noTrailer() {
+        // The decoder might stop after the last frame
+        final GifDirtyRects rects = new GifDirtyRects();
+        final byte[] gif = createGif(false);
+        rects.write(gif, 0, gif.length);
+        assertArrayEquals(EXPECTED, rects.getRects(4));
+    }
+
+    @Test
+    public void frameCountMismatch() {
+        final GifDirtyRects rects = new GifDirtyRects();
+        final byte[] gif = createGif(true);
+        rects.write(gif, 0, gif.length);
+        assertNull(rects.getRects(3));
+        assertNull(rects.getRects(5));
+        assertNull(rects.getRects(0));
+    }
+
+    @Test
+    public void notGif() {
+        final GifDirtyRects rects = new GifDirtyRects();
+        final byte[] gif = createGif(true);
+        gif[0] = 'X';
+        rects.write(gif, 0, gif.length);
+        assertNull(rects.getRects(4));
+    }
+
+    @Test
+    public void badBlock() {
+        final GifDirtyRects rects = new GifDirtyRects();
+        final byte[] gif = createGif(false);
+        rects.write(gif, 0, gif.length);
+        // Neither extension, image descriptor nor trailer
+        rects.write(0x55);
+        assertNull(rects.getRects(4));
+    }
+
+    private static byte[] createGif(boolean trailer) {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writeAscii(os, "GIF89a");
+        writeShort(os, 20);
+        writeShort(os, 10);
+        // Global color table of 4 colors
+        os.write(0x81);
+        os.write(0);
+        os.write(0);
+        os.write(new byte[3 * 4], 0, 3 * 4);
+
+        // Application extension, only sub-blocks
+        os.write(0x21);
+        os.write(0xFF);
+        os.write(11);
+        writeAscii(os, "NETSCAPE2.0");
+        os.write(3);
+        os.write(1);
+        writeShort(os, 0);
+        os.write(0);
+
+        writeFrame(os, 0, 0, 0, 20, 10, false);
+        writeFrame(os, 2, 2, 2, 3, 4, true);
+        writeFrame(os, 0, 4, 1, 4, 2, false);
+        writeFrame(os, 0, 15, 5, 10, 10, false);
+
+        if (trailer) {
+            os.write(0x3B);
+        }
+        return os.toByteArray();
+    }
+
+    private static void writeFrame(ByteArrayOutputStream os, int disposal,
+            int left, int top, int width, int height, boolean localColorTable) {
+        // Graphic control extension
+        os.write(0x21);
+        os.write(0xF9);
+        os.write(4);
+        os.write(disposal << 2);
+        writeShort(os, 10);
+        os.write(0);
+        os.write(0);
+
+        // Image descriptor
+        os.write(0x2C);
+        writeShort(os, left);
+        writeShort(os, top);
+        writeShort(os, width);
+        writeShort(os, height);
+        if (localColorTable) {
+            // 8 colors
+            os.write(0x82);
+            os.write(new byte[3 * 8], 0, 3 * 8);
+        } else {
+            os.write(0);
+        }
+
+        // LZW code size and image data, bytes look like blocks
+        os.write(2);
+        os.write(4);
+        os.write(new byte[] {0x21, 0x2C, 0x3B, 0x00}, 0, 4);
+        os.write(2);
+        os.write(0x2C);
+        os.write(0x21);
+        os.write(0);
+    }
+
+    private static void writeShort(ByteArrayOutputStream os, int value) {
+        os.write(value);
+        os.write(value >> 8);
+    }
+
+    private static void writeAscii(ByteArrayOutputStream os, String str) {
+        for (int i = 0; i < str.length(); i++) {
+            os.write(str.charAt(i));
+        }
+    }
+}
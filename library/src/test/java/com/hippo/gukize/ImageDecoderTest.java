@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ImageDecoderTest {
+
+    private static final byte[] PNG_SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    @Test
+    public void computeSample() {
+        assertEquals(4, ImageDecoder.computeSample(4000, 3000, 1000, 750));
+        assertEquals(2, ImageDecoder.computeSample(4000, 3000, 1001, 750));
+        assertEquals(2, ImageDecoder.computeSample(100, 100, 50, 50));
+        assertEquals(1, ImageDecoder.computeSample(100, 100, 51, 51));
+        // Smaller than target
+        assertEquals(1, ImageDecoder.computeSample(100, 100, 200, 200));
+        // Both sides must keep the target size
+        assertEquals(1, ImageDecoder.computeSample(4000, 100, 1000, 100));
+        // No target size
+        assertEquals(1, ImageDecoder.computeSample(4000, 3000, 0, 750));
+        assertEquals(1, ImageDecoder.computeSample(4000, 3000, 1000, -1));
+    }
+
+    @Test
+    public void readJpeg() throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writeJpegStart(os);
+        // APP0
+        writeSegment(os, 0xE0, new byte[14]);
+        // DHT, it is not a SOF
+        writeSegment(os, 0xC4, new byte[20]);
+        writeSof(os, 0xC2, 640, 480);
+
+        final ImageDecoder.Header header = read(os);
+        assertEquals(ImageDecoder.Header.FORMAT_JPEG, header.format);
+        assertEquals(640, header.width);
+        assertEquals(480, header.height);
+        assertTrue(header.opaque);
+        assertFalse(header.animated);
+    }
+
+    @Test
+    public void readJpegWithoutSof() throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writeJpegStart(os);
+        writeSegment(os, 0xDA, new byte[10]);
+        writeSof(os, 0xC0, 640, 480);
+        assertEquals(ImageDecoder.Header.FORMAT_UNKNOWN, read(os).format);
+    }
+
+    @Test
+    public void readJpegOverLimit() throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writeJpegStart(os);
+        // Two large APPn segments push SOF after the header limit
+        writeSegment(os, 0xE1, new byte[0xFFF0]);
+        writeSegment(os, 0xE2, new byte[0xFFF0]);
+        writeSof(os, 0xC0, 640, 480);
+        assertEquals(ImageDecoder.Header.FORMAT_UNKNOWN, read(os).format);
+    }
+
+    @Test
+    public void readTruncatedJpeg() throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writeJpegStart(os);
+        writeSegment(os, 0xE0, new byte[14]);
+        os.write(0xFF);
+        os.write(0xC0);
+        assertEquals(ImageDecoder.Header.FORMAT_UNKNOWN, read(os).format);
+    }
+
+    @Test
+    public void readPng() throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writePngStart(os, 300, 200, 2);
+        writeChunk(os, "IDAT", new byte[8]);
+
+        final ImageDecoder.Header header = read(os);
+        assertEquals(ImageDecoder.Header.FORMAT_PNG, header.format);
+        assertEquals(300, header.width);
+        assertEquals(200, header.height);
+        assertTrue(header.opaque);
+        assertFalse(header.animated);
+    }
+
+    @Test
+    public void readPngAlpha() throws IOException {
+        // RGBA
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writePngStart(os, 300, 200, 6);
+        writeChunk(os, "IDAT", new byte[8]);
+        assertFalse(read(os).opaque);
+
+        // Palette with tRNS
+        os = new ByteArrayOutputStream();
+        writePngStart(os, 300, 200, 3);
+        writeChunk(os, "PLTE", new byte[6]);
+        writeChunk(os, "tRNS", new byte[2]);
+        writeChunk(os, "IDAT", new byte[8]);
+        assertFalse(read(os).opaque);
+    }
+
+    @Test
+    public void readApng() throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writePngStart(os, 300, 200, 6);
+        writeChunk(os, "acTL", new byte[8]);
+        writeChunk(os, "IDAT", new byte[8]);
+
+        final ImageDecoder.Header header = read(os);
+        assertEquals(ImageDecoder.Header.FORMAT_PNG, header.format);
+        assertTrue(header.animated);
+    }
+
+    @Test
+    public void readGif() throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write("GIF89a".getBytes("US-ASCII"));
+        writeUInt16LE(os, 500);
+        writeUInt16LE(os, 258);
+        os.write(new byte[3]);
+
+        final ImageDecoder.Header header = read(os);
+        assertEquals(ImageDecoder.Header.FORMAT_GIF, header.format);
+        assertEquals(500, header.width);
+        assertEquals(258, header.height);
+    }
+
+    @Test
+    public void readUnknown() throws IOException {
+        assertEquals(ImageDecoder.Header.FORMAT_UNKNOWN,
+                read(new byte[] {'R', 'I', 'F', 'F', 0, 0, 0, 0}).format);
+        assertEquals(ImageDecoder.Header.FORMAT_UNKNOWN, read(new byte[0]).format);
+    }
+
+    private static ImageDecoder.Header read(ByteArrayOutputStream os) throws IOException {
+        return read(os.toByteArray());
+    }
+
+    private static ImageDecoder.Header read(byte[] bytes) throws IOException {
+        return ImageDecoder.Header.read(new ByteArrayInputStream(bytes));
+    }
+
+    private static void writeJpegStart(ByteArrayOutputStream os) {
+        os.write(0xFF);
+        os.write(0xD8);
+    }
+
+    private static void writeSegment(ByteArrayOutputStream os, int marker, byte[] data) {
+        os.write(0xFF);
+        os.write(marker);
+        writeUInt16(os, data.length + 2);
+        os.write(data, 0, data.length);
+    }
+
+    private static void writeSof(ByteArrayOutputStream os, int marker, int width, int height) {
+        final ByteArrayOutputStream sof = new ByteArrayOutputStream();
+        sof.write(8);
+        writeUInt16(sof, height);
+        writeUInt16(sof, width);
+        sof.write(3);
+        sof.write(new byte[9], 0, 9);
+        writeSegment(os, marker, sof.toByteArray());
+    }
+
+    private static void writePngStart(ByteArrayOutputStream os, int width, int height,
+            int colorType) throws IOException {
+        os.write(PNG_SIGNATURE);
+        final ByteArrayOutputStream ihdr = new ByteArrayOutputStream();
+        writeInt32(ihdr, width);
+        writeInt32(ihdr, height);
+        ihdr.write(8);
+        ihdr.write(colorType);
+        ihdr.write(new byte[3]);
+        writeChunk(os, "IHDR", ihdr.toByteArray());
+    }
+
+    private static void writeChunk(ByteArrayOutputStream os, String type, byte[] data)
+            throws IOException {
+        writeInt32(os, data.length);
+        os.write(type.getBytes("US-ASCII"));
+        os.write(data);
+        // CRC is not checked
+        writeInt32(os, 0);
+    }
+
+    private static void writeUInt16(ByteArrayOutputStream os, int value) {
+        os.write(value >> 8);
+        os.write(value);
+    }
+
+    private static void writeUInt16LE(ByteArrayOutputStream os, int value) {
+        os.write(value);
+        os.write(value >> 8);
+    }
+
+    private static void writeInt32(ByteArrayOutputStream os, int value) {
+        os.write(value >> 24);
+        os.write(value >> 16);
+        os.write(value >> 8);
+        os.write(value);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NegativeCacheTest {
+
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+
+    @Test
+    public void ttl() {
+        final String key = "ttl";
+        assertFalse(NegativeCache.contains(key, 0));
+        NegativeCache.put(key, 0);
+        assertTrue(NegativeCache.contains(key, 0));
+        assertTrue(NegativeCache.contains(key, 5 * SECOND - 1));
+        assertFalse(NegativeCache.contains(key, 5 * SECOND));
+    }
+
+    @Test
+    public void backoff() {
+        final String key = "backoff";
+        long now = 0;
+        long ttl = 5 * SECOND;
+        // 5s, 10s, 20s ... 160s, then 5min
+        for (int i = 0; i < 6; i++) {
+            NegativeCache.put(key, now);
+            assertTrue(NegativeCache.contains(key, now + ttl - 1));
+            assertFalse(NegativeCache.contains(key, now + ttl));
+            now += ttl;
+            ttl *= 2;
+        }
+        for (int i = 0; i < 40; i++) {
+            NegativeCache.put(key, now);
+            assertTrue(NegativeCache.contains(key, now + 5 * MINUTE - 1));
+            assertFalse(NegativeCache.contains(key, now + 5 * MINUTE));
+            now += 5 * MINUTE;
+        }
+    }
+
+    @Test
+    public void remove() {
+        final String key = "remove";
+        NegativeCache.put(key, 0);
+        NegativeCache.put(key, 0);
+        NegativeCache.remove(key);
+        assertFalse(NegativeCache.contains(key, 0));
+        // Backoff starts again
+        NegativeCache.put(key, 0);
+        assertFalse(NegativeCache.contains(key, 5 * SECOND));
+    }
+
+    @Test
+    public void maxSize() {
+        final String key = "maxSize";
+        NegativeCache.put(key, 0);
+        for (int i = 0; i < 128; i++) {
+            NegativeCache.put(key + i, 0);
+        }
+        // The least recently used one is dropped
+        assertFalse(NegativeCache.contains(key, 0));
+        assertTrue(NegativeCache.contains(key + 0, 0));
+        assertTrue(NegativeCache.contains(key + 127, 0));
+    }
+
+    @Test
+    public void hitCount() {
+        final String key = "hitCount";
+        final int count = NegativeCache.getHitCount();
+        NegativeCache.contains(key, 0);
+        assertEquals(count, NegativeCache.getHitCount());
+        NegativeCache.put(key, 0);
+        NegativeCache.contains(key, 0);
+        NegativeCache.contains(key, 5 * SECOND);
+        assertEquals(count + 1, NegativeCache.getHitCount());
+    }
+}
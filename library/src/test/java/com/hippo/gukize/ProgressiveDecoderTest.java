@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressiveDecoderTest {
+
+    private static void marker(ByteArrayOutputStream os, int marker) {
+        os.write(0xFF);
+        os.write(marker);
+    }
+
+    private static void segment(ByteArrayOutputStream os, int marker, int... payload) {
+        marker(os, marker);
+        final int length = payload.length + 2;
+        os.write(length >> 8);
+        os.write(length);
+        for (int b : payload) {
+            os.write(b);
+        }
+    }
+
+    private static void entropy(ByteArrayOutputStream os) {
+        // Stuffed 0xFF and a restart marker
+        for (int b : new int[] {0x12, 0xFF, 0x00, 0x34, 0xFF, 0xD0, 0x56, 0xFF, 0xFF, 0x00}) {
+            os.write(b);
+        }
+    }
+
+    private static byte[] buildProgressive() {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        marker(os, 0xD8);
+        segment(os, 0xC2, 8, 0, 16, 0, 16, 1, 1, 0x11, 0);
+        segment(os, 0xDA, 1, 1, 0, 0, 0, 0);
+        entropy(os);
+        segment(os, 0xC4, 0, 0);
+        segment(os, 0xDA, 1, 1, 0, 0, 0, 0);
+        entropy(os);
+        segment(os, 0xDA, 1, 1, 0, 0, 0, 0);
+        entropy(os);
+        marker(os, 0xD9);
+        return os.toByteArray();
+    }
+
+    @Test
+    public void notJpeg() {
+        final ProgressiveDecoder.Scanner scanner = new ProgressiveDecoder.Scanner();
+        scanner.scan(new byte[] {(byte) 0x89, 'P', 'N', 'G'}, 4);
+        assertTrue(scanner.isNotJpeg());
+    }
+
+    @Test
+    public void markersInPayload() {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        marker(os, 0xD8);
+        // EXIF bytes looking like SOF2 and SOS
+        segment(os, 0xE1, 0xFF, 0xC2, 0xFF, 0xDA, 0xFF, 0xD9);
+        segment(os, 0xC0, 8, 0, 16, 0, 16, 1, 1, 0x11, 0);
+        final byte[] data = os.toByteArray();
+
+        final ProgressiveDecoder.Scanner scanner = new ProgressiveDecoder.Scanner();
+        scanner.scan(data, data.length);
+        assertFalse(scanner.isNotJpeg());
+        assertFalse(scanner.isProgressive());
+        assertFalse(scanner.isScanStarted());
+        assertEquals(0, scanner.getCompleteScans());
+    }
+
+    @Test
+    public void baseline() {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        marker(os, 0xD8);
+        segment(os, 0xE0, 'J', 'F', 'I', 'F', 0);
+        segment(os, 0xC0, 8, 0, 16, 0, 16, 1, 1, 0x11, 0);
+        segment(os, 0xDA, 1, 1, 0, 0, 0x3F, 0);
+        entropy(os);
+        final int scanEnd = os.size();
+        marker(os, 0xD9);
+        final byte[] data = os.toByteArray();
+
+        final ProgressiveDecoder.Scanner scanner = new ProgressiveDecoder.Scanner();
+        scanner.scan(data, scanEnd);
+        assertFalse(scanner.isProgressive());
+        assertTrue(scanner.isScanStarted());
+        assertEquals(0, scanner.getCompleteScans());
+        scanner.scan(data, data.length);
+        assertEquals(1, scanner.getCompleteScans());
+    }
+
+    @Test
+    public void progressive() {
+        final byte[] data = buildProgressive();
+        final ProgressiveDecoder.Scanner scanner = new ProgressiveDecoder.Scanner();
+        scanner.scan(data, data.length);
+        assertFalse(scanner.isNotJpeg());
+        assertTrue(scanner.isProgressive());
+        assertEquals(3, scanner.getCompleteScans());
+    }
+
+    @Test
+    public void byteByByte() {
+        final byte[] data = buildProgressive();
+        final ProgressiveDecoder.Scanner scanner = new ProgressiveDecoder.Scanner();
+        int lastScans = 0;
+        for (int size = 0; size <= data.length; size++) {
+            scanner.scan(data, size);
+            final int scans = scanner.getCompleteScans();
+            assertTrue(scans >= lastScans);
+            lastScans = scans;
+        }
+        assertFalse(scanner.isNotJpeg());
+        assertTrue(scanner.isProgressive());
+        assertEquals(3, lastScans);
+    }
+}
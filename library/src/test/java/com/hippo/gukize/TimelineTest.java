@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.gukize;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimelineTest {
+
+    @Test
+    public void order() {
+        final Timeline.Commands commands = new Timeline.Commands();
+        assertTrue(commands.isEmpty());
+        commands.add(Timeline.Commands.ADVANCE, 1);
+        commands.add(Timeline.Commands.PREPARE, 2);
+        commands.add(Timeline.Commands.TICK, 3);
+        assertCommands(commands,
+                Timeline.Commands.ADVANCE, 1,
+                Timeline.Commands.PREPARE, 2,
+                Timeline.Commands.TICK, 3);
+    }
+
+    @Test
+    public void coalesce() {
+        final Timeline.Commands commands = new Timeline.Commands();
+        commands.add(Timeline.Commands.TICK, 1);
+        commands.add(Timeline.Commands.SAMPLE, 2);
+        commands.add(Timeline.Commands.TICK, 3);
+        commands.add(Timeline.Commands.SAMPLE, 4);
+        // Replaced in place with the new arg
+        assertCommands(commands,
+                Timeline.Commands.TICK, 3,
+                Timeline.Commands.SAMPLE, 4);
+    }
+
+    @Test
+    public void reset() {
+        final Timeline.Commands commands = new Timeline.Commands();
+        commands.add(Timeline.Commands.TICK, 1);
+        commands.add(Timeline.Commands.SAMPLE, 2);
+        commands.add(Timeline.Commands.ADVANCE, 3);
+        commands.add(Timeline.Commands.RESET_ANIMATE, 4);
+        // Only SAMPLE survives
+        assertCommands(commands,
+                Timeline.Commands.SAMPLE, 2,
+                Timeline.Commands.RESET_ANIMATE, 4);
+
+        // Reset is not coalesced, but drops the pending one
+        commands.add(Timeline.Commands.RESET, 1);
+        commands.add(Timeline.Commands.RESET, 2);
+        assertCommands(commands, Timeline.Commands.RESET, 2);
+    }
+
+    @Test
+    public void recycle() {
+        final Timeline.Commands commands = new Timeline.Commands();
+        commands.add(Timeline.Commands.SAMPLE, 1);
+        commands.add(Timeline.Commands.TICK, 2);
+        commands.add(Timeline.Commands.RECYCLE, 3);
+        assertCommands(commands, Timeline.Commands.RECYCLE, 3);
+    }
+
+    @Test
+    public void wrapAround() {
+        final Timeline.Commands full = new Timeline.Commands();
+        // Move the head near the end of the ring
+        for (int i = 0; i < 5; i++) {
+            full.add(Timeline.Commands.TICK, i);
+            full.remove();
+        }
+        full.add(Timeline.Commands.RESET, 0);
+        full.add(Timeline.Commands.ADVANCE, 1);
+        full.add(Timeline.Commands.ADVANCE_ANIMATE, 2);
+        full.add(Timeline.Commands.PREPARE, 3);
+        full.add(Timeline.Commands.SAMPLE, 4);
+        full.add(Timeline.Commands.TICK, 5);
+        // Every kind fits
+        assertEquals(6, full.size());
+        full.add(Timeline.Commands.RESET_ANIMATE, 6);
+        assertCommands(full,
+                Timeline.Commands.SAMPLE, 4,
+                Timeline.Commands.RESET_ANIMATE, 6);
+    }
+
+    // Expected commands and args in pairs
+    private static void assertCommands(Timeline.Commands commands, long... expected) {
+        assertEquals(expected.length / 2, commands.size());
+        for (int i = 0; i < expected.length; i += 2) {
+            assertEquals(expected[i], commands.getCommand());
+            assertEquals(expected[i + 1], commands.getArg());
+            commands.remove();
+        }
+        assertTrue(commands.isEmpty());
+    }
+}